@@ -1,7 +1,6 @@
 package com.nickgirga.nextcloudmapsgeofavorites.activity.detail;
 
 import android.content.Context;
-import android.graphics.drawable.Drawable;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
@@ -9,15 +8,17 @@ import android.widget.TextView;
 
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.core.graphics.drawable.DrawableCompat;
 
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.Map;
 
 import com.nickgirga.nextcloudmapsgeofavorites.R;
-import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteCategory;
+import com.nickgirga.nextcloudmapsgeofavorites.utils.CategoryIcons;
 
 public class CategoriesAdapter extends ArrayAdapter<String> {
+    private Map<String, GeofavoriteCategory> categories = Collections.emptyMap();
 
     public CategoriesAdapter(@NonNull Context context) {
         super(context, R.layout.category_listitem, R.id.category_name, new ArrayList<>());
@@ -28,19 +29,24 @@ public class CategoriesAdapter extends ArrayAdapter<String> {
     public View getView(int position, @Nullable View convertView, @NonNull ViewGroup parent) {
         View v = super.getView(position, convertView, parent);
         TextView categoryName = v.findViewById(R.id.category_name);
-        Drawable backgroundDrawable = categoryName.getBackground();
-        DrawableCompat.setTint(
-                backgroundDrawable,
-                Geofavorite.categoryColorFromName(categoryName.getText().toString()) == 0
-                        ? v.getContext().getColor(R.color.defaultBrand)
-                        : Geofavorite.categoryColorFromName(categoryName.getText().toString())
-        );
+        categoryName.setBackground(CategoryIcons.background(v.getContext(), R.drawable.rounded_label_background,
+                CategoryIcons.color(v.getContext(), categoryName.getText().toString())));
+
+        TextView categoryCount = v.findViewById(R.id.category_count);
+        GeofavoriteCategory category = categories.get(getItem(position));
+        if (category != null) {
+            categoryCount.setText(String.valueOf(category.getCount()));
+            categoryCount.setVisibility(View.VISIBLE);
+        } else {
+            categoryCount.setVisibility(View.GONE);
+        }
         return v;
     }
 
-    public void setCategoriesList(HashSet<String> categories) {
+    public void setCategoriesList(Map<String, GeofavoriteCategory> categories) {
+        this.categories = categories;
         clear();
-        addAll(categories);
+        addAll(categories.keySet());
         notifyDataSetChanged();
     }
 
@@ -48,12 +48,13 @@ import org.osmdroid.views.overlay.Marker;
 import org.threeten.bp.format.DateTimeFormatter;
 import org.threeten.bp.format.FormatStyle;
 
-import java.util.HashSet;
+import java.util.Map;
 
 import com.nickgirga.nextcloudmapsgeofavorites.R;
 import com.nickgirga.nextcloudmapsgeofavorites.activity.NextcloudMapsStyledActivity;
 import com.nickgirga.nextcloudmapsgeofavorites.databinding.ActivityGeofavoriteDetailBinding;
 import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteCategory;
 import com.nickgirga.nextcloudmapsgeofavorites.utils.GeoUriParser;
 import com.nickgirga.nextcloudmapsgeofavorites.utils.IntentGenerator;
 import com.nickgirga.nextcloudmapsgeofavorites.utils.MapUtils;
@@ -111,9 +112,9 @@ public class GeofavoriteDetailActivity extends NextcloudMapsStyledActivity imple
 
         mViewModel = new ViewModelProvider(this).get(GeofavoriteDetailActivityViewModel.class);
         mViewModel.init(getApplicationContext());
-        mViewModel.getCategories().observe(this, new Observer<HashSet<String>>() {
+        mViewModel.getCategories().observe(this, new Observer<Map<String, GeofavoriteCategory>>() {
             @Override
-            public void onChanged(HashSet<String> categories) {
+            public void onChanged(Map<String, GeofavoriteCategory> categories) {
                 mViewHolder.setCategories(categories);
             }
         });
@@ -380,7 +381,7 @@ public class GeofavoriteDetailActivity extends NextcloudMapsStyledActivity imple
             binding.accuracyProgress.setProgress(accuracyPercent);
         }
 
-        public void setCategories(HashSet<String> categories) {
+        public void setCategories(Map<String, GeofavoriteCategory> categories) {
             ((CategoriesAdapter)binding.categoryAt.getAdapter()).setCategoriesList(categories);
         }
 
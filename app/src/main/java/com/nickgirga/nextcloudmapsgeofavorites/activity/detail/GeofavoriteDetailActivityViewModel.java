@@ -7,10 +7,11 @@ import androidx.lifecycle.MutableLiveData;
 import androidx.lifecycle.ViewModel;
 
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteCategory;
 import com.nickgirga.nextcloudmapsgeofavorites.repository.GeofavoriteRepository;
 
 public class GeofavoriteDetailActivityViewModel extends ViewModel {
@@ -28,7 +29,7 @@ public class GeofavoriteDetailActivityViewModel extends ViewModel {
         mRepo.saveGeofavorite(geofav);
     }
 
-    public LiveData<HashSet<String>> getCategories(){
+    public LiveData<Map<String, GeofavoriteCategory>> getCategories(){
         return mRepo.getCategories();
     }
 
@@ -21,7 +21,6 @@
 package com.nickgirga.nextcloudmapsgeofavorites.activity.main;
 
 import android.content.Context;
-import android.graphics.drawable.Drawable;
 import android.text.Html;
 import android.util.Log;
 import android.view.LayoutInflater;
@@ -33,18 +32,18 @@ import android.widget.PopupMenu;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
-import androidx.core.graphics.drawable.DrawableCompat;
 import androidx.recyclerview.widget.RecyclerView;
 
 import org.threeten.bp.format.DateTimeFormatter;
 import org.threeten.bp.format.FormatStyle;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import com.nickgirga.nextcloudmapsgeofavorites.R;
 import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteSelection;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteTable;
+import com.nickgirga.nextcloudmapsgeofavorites.utils.CategoryIcons;
 
 public class GeofavoriteAdapter extends RecyclerView.Adapter<GeofavoriteAdapter.GeofavoriteViewHolder> {
 
@@ -55,12 +54,21 @@ public class GeofavoriteAdapter extends RecyclerView.Adapter<GeofavoriteAdapter.
     public static final int SORT_BY_CATEGORY = 2;
     public static final int SORT_BY_DISTANCE = 3;
 
+    // Larger lists are sorted by distance a page at a time, see get()
+    private static final int FULL_DISTANCE_SORT_LIMIT = 2000;
+    private static final int NEAREST_PAGE_SIZE = 100;
+
     private final Context context;
     private final ItemClickListener itemClickListener;
     private final DateTimeFormatter dateFormatter = DateTimeFormatter.ofLocalizedDate(FormatStyle.SHORT);
 
-    private List<Geofavorite> items = new ArrayList<>();
+    // Sorted rows of the snapshot, the geofavorites are not copied
+    private GeofavoriteSelection items = GeofavoriteSelection.EMPTY;
     private int sortRule = SORT_BY_CREATED;
+    // Last known user position, NaN if unknown
+    private double userLat = Double.NaN, userLng = Double.NaN;
+    // Nearest items sorted so far when sorting a large list by distance, null otherwise
+    private GeofavoriteSelection nearest;
 
     // Contains the position of the element containing the overflow menu clicked
     private int overflowMenuSelectedPosition = -1;
@@ -71,14 +79,19 @@ public class GeofavoriteAdapter extends RecyclerView.Adapter<GeofavoriteAdapter.
     }
 
     public void setGeofavoriteList(@NonNull List<Geofavorite> geofavoriteList) {
-        this.items.clear();
-        this.items.addAll(geofavoriteList);
+        this.items = GeofavoriteSelection.of(geofavoriteList);
 
         performSort();
         notifyDataSetChanged();
     }
 
     public Geofavorite get(int position) {
+        if (nearest != null) {
+            // Only the items shown so far are sorted: the next ones are found with the spatial index
+            if (position >= nearest.size())
+                nearest = items.nearest(userLat, userLng, Math.max(position + 1, nearest.size() * 2));
+            return nearest.get(position);
+        }
         return items.get(position);
     }
 
@@ -93,6 +106,20 @@ public class GeofavoriteAdapter extends RecyclerView.Adapter<GeofavoriteAdapter.
         notifyDataSetChanged();
     }
 
+    /**
+     * Updates the position items are sorted by distance from. Called when the user moved noticeably:
+     * the list is re-sorted from its current order, mostly sorted already if the user moved a little.
+     */
+    public void setUserPosition(double lat, double lng) {
+        this.userLat = lat;
+        this.userLng = lng;
+
+        if (sortRule == SORT_BY_DISTANCE) {
+            performSort();
+            notifyDataSetChanged();
+        }
+    }
+
     @NonNull
     @Override
     public GeofavoriteViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
@@ -102,11 +129,10 @@ public class GeofavoriteAdapter extends RecyclerView.Adapter<GeofavoriteAdapter.
 
     @Override
     public void onBindViewHolder(@NonNull GeofavoriteViewHolder holder, int position) {
-        Geofavorite geofavorite = items.get(position);
+        Geofavorite geofavorite = get(position);
 
         holder.tv_category.setText(geofavorite.categoryLetter());
-        holder.setCategoryColor(
-                geofavorite.categoryColor() == 0 ? context.getColor(R.color.defaultBrand) : geofavorite.categoryColor());
+        holder.setCategoryColor(CategoryIcons.color(context, geofavorite.getCategory()));
         holder.tv_title.setText(Html.fromHtml(geofavorite.getName() == null ? "" : geofavorite.getName()));
         holder.tv_content.setText(geofavorite.getComment() == null ? "" : geofavorite.getComment());
         holder.tv_date.setText(geofavorite.getLocalDateCreated().format(dateFormatter));
@@ -159,22 +185,35 @@ public class GeofavoriteAdapter extends RecyclerView.Adapter<GeofavoriteAdapter.
         }
 
         public void setCategoryColor(int ccTint) {
-            Drawable bg = DrawableCompat.wrap(this.tv_category.getContext().getDrawable(R.drawable.ic_list_pin));
-            this.tv_category.setBackground(bg);
-            DrawableCompat.setTint(bg, ccTint);
+            this.tv_category.setBackground(CategoryIcons.pin(this.tv_category.getContext(), R.drawable.ic_list_pin, ccTint));
         }
     }
 
 
     private void performSort() {
+        nearest = null;
+        // The best matches of a text search stay first, whatever the sort rule
+        if (items.isRanked())
+            return;
+
+        // Sorts the rows on the table columns
+        GeofavoriteTable table = items.getSnapshot().getTable();
         if (sortRule == SORT_BY_TITLE) {
-            Collections.sort(items, Geofavorite.ByTitleAZ);
+            items = items.sorted(table.byTitle());
         } else if (sortRule == SORT_BY_CREATED) {
-            Collections.sort(items, Geofavorite.ByLastCreated);
+            items = items.sorted(table.byLastCreated());
         } else if (sortRule == SORT_BY_CATEGORY) {
-            Collections.sort(items, Geofavorite.ByCategory);
-        } else if (sortRule == SORT_BY_DISTANCE) {
-            Collections.sort(items, Geofavorite.ByDistance);
+            items = items.sorted(table.byCategory());
+        } else if (sortRule == SORT_BY_DISTANCE && !Double.isNaN(userLat)) {
+            if (items.size() > FULL_DISTANCE_SORT_LIMIT) {
+                nearest = items.nearest(userLat, userLng, NEAREST_PAGE_SIZE);
+            } else {
+                // Distances computed once, not by the comparator
+                double[] distances = new double[table.size()];
+                for (int i = 0; i < items.size(); i++)
+                    distances[items.getRow(i)] = table.distanceFrom(items.getRow(i), userLat, userLng);
+                items = items.sorted(GeofavoriteTable.byDistance(distances));
+            }
         }
     }
 
@@ -5,29 +5,80 @@ import android.content.Context;
 import androidx.lifecycle.LiveData;
 import androidx.lifecycle.ViewModel;
 
-import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
+import com.nickgirga.nextcloudmapsgeofavorites.model.ClusterIndex;
 import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteCategory;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteSnapshot;
 import com.nickgirga.nextcloudmapsgeofavorites.repository.GeofavoriteRepository;
+import com.nickgirga.nextcloudmapsgeofavorites.utils.FilterCriteria;
+import com.nickgirga.nextcloudmapsgeofavorites.utils.GeofavoritesClustering;
+import com.nickgirga.nextcloudmapsgeofavorites.utils.GeofavoritesSearch;
 
 public class GeofavoritesFragmentViewModel extends ViewModel {
     private GeofavoriteRepository mRepo;
+    private GeofavoritesSearch mSearch;
+    private GeofavoritesClustering mClustering;
 
     public void init(Context applicationContext) {
-        mRepo = GeofavoriteRepository.getInstance(applicationContext);
+        GeofavoriteRepository repo = GeofavoriteRepository.getInstance(applicationContext);
+        if (mSearch == null)
+            mSearch = new GeofavoritesSearch(repo.getSearchIndex(), repo.getFuzzyIndex(), repo::searchFullText);
+        else if (repo != mRepo)
+            // The account has been switched: search the indexes of the new one
+            mSearch.setSources(repo.getSearchIndex(), repo.getFuzzyIndex(), repo::searchFullText);
+        mRepo = repo;
+        if (mClustering == null)
+            mClustering = new GeofavoritesClustering();
     }
 
-    public LiveData<List<Geofavorite>> getGeofavorites(){
-        mRepo.updateGeofavorites();
+    public LiveData<GeofavoriteSnapshot> getGeofavorites(){
         return mRepo.getGeofavorites();
     }
 
+    /**
+     * Filters the geofavorites in background, results are delivered by getSearchResults()
+     */
+    public void search(GeofavoriteSnapshot geofavorites, FilterCriteria criteria) {
+        mSearch.search(geofavorites, criteria);
+    }
+
+    public LiveData<List<Geofavorite>> getSearchResults() {
+        return mSearch.getResults();
+    }
+
+    /**
+     * Builds the spatial index of the searched snapshots in background, see GeofavoritesSearch.setPrepareSpatialIndex()
+     */
+    public void setPrepareSpatialIndex(boolean prepare) {
+        mSearch.setPrepareSpatialIndex(prepare);
+    }
+
+    /**
+     * Groups the geofavorites into map clusters in background, delivered by getClusters()
+     */
+    public void cluster(List<Geofavorite> geofavorites) {
+        mClustering.cluster(geofavorites);
+    }
+
+    public LiveData<ClusterIndex> getClusters() {
+        return mClustering.getClusters();
+    }
+
     public void updateGeofavorites() {
         mRepo.updateGeofavorites();
     }
 
-    public LiveData<HashSet<String>> getCategories(){
+    /**
+     * Explicit refresh requested by the user: bypasses the repository freshness window
+     */
+    public void refreshGeofavorites() {
+        mRepo.updateGeofavorites(true);
+    }
+
+    public LiveData<Map<String, GeofavoriteCategory>> getCategories(){
         return mRepo.getCategories();
     }
 
@@ -43,4 +94,10 @@ public class GeofavoritesFragmentViewModel extends ViewModel {
         return mRepo.onFinished();
     }
 
+    @Override
+    protected void onCleared() {
+        mSearch.shutdown();
+        mClustering.shutdown();
+    }
+
 }
@@ -44,10 +44,8 @@ import com.nickgirga.nextcloudmapsgeofavorites.activity.detail.GeofavoriteDetail
 import com.nickgirga.nextcloudmapsgeofavorites.activity.login.LoginActivity;
 import com.nickgirga.nextcloudmapsgeofavorites.activity.main.NavigationAdapter.NavigationItem;
 import com.nickgirga.nextcloudmapsgeofavorites.activity.mappicker.MapPickerActivity;
-import com.nickgirga.nextcloudmapsgeofavorites.api.ApiProvider;
 import com.nickgirga.nextcloudmapsgeofavorites.fragments.GeofavoriteListFragment;
 import com.nickgirga.nextcloudmapsgeofavorites.fragments.GeofavoriteMapFragment;
-import com.nickgirga.nextcloudmapsgeofavorites.repository.GeofavoriteRepository;
 import com.nickgirga.nextcloudmapsgeofavorites.utils.SettingsManager;
 import com.nickgirga.nextcloudmapsgeofavorites.utils.ThemeUtils;
 
@@ -91,10 +89,14 @@ public class MainActivity extends NextcloudMapsStyledActivity {
         onGpsPermissionGrantedListener.remove(l);
     }
 
+    /**
+     * Asks for the precise location, or the approximate one if the user prefers so.
+     * Listeners are notified when either is granted.
+     */
     public void requestGpsPermissions() {
         ActivityCompat.requestPermissions(
             this,
-            new String[]{Manifest.permission.ACCESS_FINE_LOCATION},
+            new String[]{Manifest.permission.ACCESS_FINE_LOCATION, Manifest.permission.ACCESS_COARSE_LOCATION},
             PERMISSION_REQUEST_CODE
         );
     }
@@ -103,9 +105,13 @@ public class MainActivity extends NextcloudMapsStyledActivity {
     public void onRequestPermissionsResult(int requestCode, @NonNull String[] permissions, @NonNull int[] grantResults) {
         super.onRequestPermissionsResult(requestCode, permissions, grantResults);
 
-        if (requestCode == PERMISSION_REQUEST_CODE && permissions[0].equals(Manifest.permission.ACCESS_FINE_LOCATION)) {
-            if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
-                for (OnGpsPermissionGrantedListener l : onGpsPermissionGrantedListener) {
+        if (requestCode == PERMISSION_REQUEST_CODE) {
+            boolean granted = false;
+            for (int result : grantResults)
+                granted |= result == PackageManager.PERMISSION_GRANTED;
+            if (granted) {
+                // Copied, as listeners can unregister themselves
+                for (OnGpsPermissionGrantedListener l : new ArrayList<>(onGpsPermissionGrantedListener)) {
                     l.onGpsPermissionGranted();
                 }
             }
@@ -241,8 +247,7 @@ public class MainActivity extends NextcloudMapsStyledActivity {
     }
 
     public void switch_account() {
-        ApiProvider.logout();
-        GeofavoriteRepository.resetInstance();
+        // API clients and repositories are kept per account: switching back to this one will be immediate
         ThemeUtils.clearTheme(this);
         SingleAccountHelper.applyCurrentAccount(this, null);
         Intent intent = new Intent(MainActivity.this, LoginActivity.class);
@@ -23,40 +23,116 @@ package com.nickgirga.nextcloudmapsgeofavorites.api;
 import android.content.Context;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import com.google.gson.GsonBuilder;
+import com.nextcloud.android.sso.AccountImporter;
 import com.nextcloud.android.sso.api.NextcloudAPI;
 import com.nextcloud.android.sso.exceptions.NextcloudFilesAppAccountNotFoundException;
 import com.nextcloud.android.sso.exceptions.NoCurrentAccountSelectedException;
 import com.nextcloud.android.sso.helper.SingleAccountHelper;
 import com.nextcloud.android.sso.model.SingleSignOnAccount;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import retrofit2.NextcloudRetrofitApiBuilder;
 
+/**
+ * API clients are kept per account, so that switching back to a recently used account
+ * does not need to connect again. Only the MAX_WARM_ACCOUNTS most recently used are kept.
+ */
 public class ApiProvider {
     private static final String TAG = ApiProvider.class.getCanonicalName();
+    private static final int MAX_WARM_ACCOUNTS = 3;
 
-    protected static API mApi;
+    // Account name -> clients, in access order
+    private static final LinkedHashMap<String, AccountClients> mClients =
+            new LinkedHashMap<String, AccountClients>(MAX_WARM_ACCOUNTS + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, AccountClients> eldest) {
+                    if (size() <= MAX_WARM_ACCOUNTS)
+                        return false;
+                    eldest.getValue().nextcloudAPI.stop();
+                    return true;
+                }
+            };
 
+    /**
+     * @return the API of the current account
+     */
     @Nullable
     public static API getAPI(Context context) {
-        if (mApi == null) {
-            try {
-                SingleSignOnAccount ssoAccount = SingleAccountHelper.getCurrentSingleSignOnAccount(context);
-                NextcloudAPI nextcloudAPI = new NextcloudAPI(context, ssoAccount, new GsonBuilder().create());
-
-                mApi = new NextcloudRetrofitApiBuilder(nextcloudAPI, API.mApiEndpoint).create(API.class);
-            } catch (NextcloudFilesAppAccountNotFoundException | NoCurrentAccountSelectedException e) {
-                Log.d(TAG, "setAccout() called with: ex = [" + e + "]");
-            }
+        AccountClients clients = getClients(context, null);
+        return clients != null ? clients.api : null;
+    }
+
+    /**
+     * @return the API of the given account, also when it is not the current one (e.g. to complete its pending work)
+     */
+    @Nullable
+    public static API getAPI(Context context, @Nullable String accountName) {
+        if (accountName == null)
+            return null;
+        AccountClients clients = getClients(context, accountName);
+        return clients != null ? clients.api : null;
+    }
+
+    /**
+     * Low level SSO client of the current account, for requests that cannot go through Retrofit (e.g. streamed responses)
+     */
+    @Nullable
+    public static NextcloudAPI getNextcloudAPI(Context context) {
+        AccountClients clients = getClients(context, null);
+        return clients != null ? clients.nextcloudAPI : null;
+    }
+
+    @Nullable
+    public static NextcloudAPI getNextcloudAPI(Context context, @Nullable String accountName) {
+        if (accountName == null)
+            return null;
+        AccountClients clients = getClients(context, accountName);
+        return clients != null ? clients.nextcloudAPI : null;
+    }
+
+    /**
+     * @param accountName null for the current account
+     */
+    @Nullable
+    private static synchronized AccountClients getClients(Context context, @Nullable String accountName) {
+        if (accountName != null) {
+            AccountClients clients = mClients.get(accountName);
+            if (clients != null)
+                return clients;
         }
 
-        return mApi;
+        SingleSignOnAccount ssoAccount;
+        try {
+            ssoAccount = accountName == null
+                    ? SingleAccountHelper.getCurrentSingleSignOnAccount(context)
+                    : AccountImporter.getSingleSignOnAccount(context, accountName);
+        } catch (NextcloudFilesAppAccountNotFoundException | NoCurrentAccountSelectedException e) {
+            Log.d(TAG, "setAccout() called with: ex = [" + e + "]");
+            return null;
+        }
+
+        AccountClients clients = mClients.get(ssoAccount.name);
+        if (clients == null) {
+            NextcloudAPI nextcloudAPI = new NextcloudAPI(context.getApplicationContext(), ssoAccount, new GsonBuilder().create());
+            clients = new AccountClients(nextcloudAPI,
+                    new NextcloudRetrofitApiBuilder(nextcloudAPI, API.mApiEndpoint).create(API.class));
+            mClients.put(ssoAccount.name, clients);
+        }
+        return clients;
     }
 
-    public static void logout() {
-        mApi = null;
+    private static class AccountClients {
+        final NextcloudAPI nextcloudAPI;
+        final API api;
+
+        AccountClients(NextcloudAPI nextcloudAPI, API api) {
+            this.nextcloudAPI = nextcloudAPI;
+            this.api = api;
+        }
     }
 }
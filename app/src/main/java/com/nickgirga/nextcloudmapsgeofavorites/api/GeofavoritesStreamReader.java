@@ -0,0 +1,105 @@
+/*
+ * Nextcloud Maps Geofavorites for Android
+ *
+ * @copyright Copyright (c) 2020 Nick Girga <nickgirga@gmail.com>
+ * @author Nick Girga <nickgirga@gmail.com>
+ *
+ * This program is free software: you can redistribute com and/or modify
+ * com under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that com will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nickgirga.nextcloudmapsgeofavorites.api;
+
+import androidx.annotation.WorkerThread;
+
+import com.google.gson.GsonBuilder;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.nextcloud.android.sso.aidl.NextcloudRequest;
+import com.nextcloud.android.sso.api.NextcloudAPI;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+
+/**
+ * Downloads the geofavorites with GET /favorites through the SSO client (see fetch(), called by
+ * GeofavoriteRepository.streamGeofavorites()). The response is decoded while it is downloaded, and
+ * the geofavorites are handed over in chunks: memory usage does not depend on the payload size and
+ * callers can show the first geofavorites before the download completes.
+ */
+public class GeofavoritesStreamReader {
+    private static final TypeAdapter<Geofavorite> GEOFAVORITE_ADAPTER =
+            new GsonBuilder().create().getAdapter(Geofavorite.class);
+
+    /**
+     * Downloads the geofavorites, blocking until the whole response has been read.
+     * @param pruneBefore if greater than 0, only the geofavorites modified after this timestamp (in seconds) are returned
+     * @param chunkSize maximum number of geofavorites passed to each onChunk() call
+     * @return the number of geofavorites read
+     * @throws Exception if the request fails or the response is malformed
+     */
+    @WorkerThread
+    public static int fetch(NextcloudAPI nextcloudAPI, long pruneBefore, int chunkSize, OnChunkListener listener) throws Exception {
+        Map<String, String> parameters = new HashMap<>();
+        if (pruneBefore > 0)
+            parameters.put("pruneBefore", String.valueOf(pruneBefore));
+
+        NextcloudRequest request = new NextcloudRequest.Builder()
+                .setMethod("GET")
+                .setUrl(API.mApiEndpoint + "/favorites")
+                .setParameter(parameters)
+                .build();
+        try (InputStream body = nextcloudAPI.performNetworkRequestV2(request).getBody()) {
+            return read(body, chunkSize, listener);
+        }
+    }
+
+    /**
+     * Decodes a JSON array of geofavorites from the stream
+     */
+    public static int read(InputStream in, int chunkSize, OnChunkListener listener) throws IOException {
+        JsonReader reader = new JsonReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        List<Geofavorite> chunk = new ArrayList<>(chunkSize);
+        int count = 0;
+
+        reader.beginArray();
+        while (reader.hasNext()) {
+            chunk.add(GEOFAVORITE_ADAPTER.read(reader));
+            count++;
+            if (chunk.size() == chunkSize) {
+                listener.onChunk(chunk);
+                chunk = new ArrayList<>(chunkSize);
+            }
+        }
+        reader.endArray();
+
+        if (!chunk.isEmpty())
+            listener.onChunk(chunk);
+        return count;
+    }
+
+    public interface OnChunkListener {
+        /**
+         * Called on the reading thread. The chunk is not reused by the reader.
+         */
+        void onChunk(List<Geofavorite> chunk);
+    }
+}
@@ -5,6 +5,12 @@ import static com.nickgirga.nextcloudmapsgeofavorites.activity.main.GeofavoriteA
 import static com.nickgirga.nextcloudmapsgeofavorites.activity.main.GeofavoriteAdapter.SORT_BY_DISTANCE;
 import static com.nickgirga.nextcloudmapsgeofavorites.activity.main.GeofavoriteAdapter.SORT_BY_TITLE;
 
+import android.Manifest;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
 import android.os.Bundle;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -13,6 +19,7 @@ import android.view.ViewGroup;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.appcompat.widget.AppCompatImageView;
+import androidx.core.content.ContextCompat;
 import androidx.fragment.app.FragmentTransaction;
 import androidx.lifecycle.Observer;
 import androidx.recyclerview.widget.LinearLayoutManager;
@@ -30,10 +37,20 @@ import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
 import com.nickgirga.nextcloudmapsgeofavorites.utils.GeofavoritesFilter;
 import com.nickgirga.nextcloudmapsgeofavorites.utils.SettingsManager;
 
-public class GeofavoriteListFragment extends GeofavoritesFragment implements SortingOrderDialogFragment.OnSortingOrderListener {
+public class GeofavoriteListFragment extends GeofavoritesFragment implements SortingOrderDialogFragment.OnSortingOrderListener,
+        LocationListener, MainActivity.OnGpsPermissionGrantedListener {
+    // Location updates while sorting by distance
+    private static final long LOCATION_MIN_TIME_MS = 5000;
+    private static final float LOCATION_MIN_DISTANCE_M = 10;
+    // The list is sorted again once the user is this far from the position it is sorted from
+    private static final float RESORT_DISTANCE_M = 100;
 
     private SwipeRefreshLayout swipeRefresh;
     private GeofavoriteAdapter geofavoriteAdapter;
+    private boolean locationUpdates = false;
+    // Position the list is sorted from, null until the first fix
+    @Nullable
+    private Location sortedFrom;
 
     @Nullable
     @Override
@@ -89,7 +106,7 @@ public class GeofavoriteListFragment extends GeofavoritesFragment implements Sor
         // Setup view listeners
         swipeRefresh = v.findViewById(R.id.swipe_refresh);
         swipeRefresh.setOnRefreshListener(() ->
-                mGeofavoritesFragmentViewModel.updateGeofavorites());
+                mGeofavoritesFragmentViewModel.refreshGeofavorites());
 
         AppCompatImageView sortButton = v.findViewById(R.id.sort_mode);
         sortButton.setOnClickListener(view -> openSortingOrderDialogFragment(geofavoriteAdapter.getSortRule()));
@@ -109,6 +126,20 @@ public class GeofavoriteListFragment extends GeofavoritesFragment implements Sor
         updateSortingIcon(sortRule);
     }
 
+    @Override
+    public void onStart() {
+        super.onStart();
+        ((MainActivity)requireActivity()).addOnGpsPermissionGrantedListener(this);
+        updateLocationUpdates();
+    }
+
+    @Override
+    public void onStop() {
+        super.onStop();
+        ((MainActivity)requireActivity()).removeOnGpsPermissionGrantedListener(this);
+        stopLocationUpdates();
+    }
+
     @Override
     public void onDatasetChange(List<Geofavorite> items) {
         // Called when the items are loaded or a filtering happens
@@ -121,6 +152,84 @@ public class GeofavoriteListFragment extends GeofavoritesFragment implements Sor
         updateSortingIcon(sortSelection);
 
         SettingsManager.setGeofavoriteListSortBy(requireContext(), sortSelection);
+        updateLocationUpdates();
+    }
+
+    /**
+     * The user position is only followed while the list is sorted by distance
+     */
+    private void updateLocationUpdates() {
+        // Large lists are sorted by distance with the spatial index, not to be built on the main thread
+        mGeofavoritesFragmentViewModel.setPrepareSpatialIndex(geofavoriteAdapter.getSortRule() == SORT_BY_DISTANCE);
+        if (geofavoriteAdapter.getSortRule() != SORT_BY_DISTANCE) {
+            stopLocationUpdates();
+            return;
+        }
+        if (locationUpdates)
+            return;
+
+        // Check if user granted location permission
+        boolean fineLocation = ContextCompat.checkSelfPermission(requireContext(), Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+        if (!fineLocation && ContextCompat.checkSelfPermission(requireContext(), Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED) {
+            // Resumed by onGpsPermissionGranted()
+            ((MainActivity)requireActivity()).requestGpsPermissions();
+            return;
+        }
+
+        LocationManager locationManager = (LocationManager)
+                requireContext().getSystemService(Context.LOCATION_SERVICE);
+        // The GPS provider needs the precise location permission
+        String provider = fineLocation ? LocationManager.GPS_PROVIDER : LocationManager.NETWORK_PROVIDER;
+        if (locationManager.getProvider(provider) == null)
+            return;
+        // Sort on the last available location until a fix arrives
+        Location lastKnown = locationManager.getLastKnownLocation(provider);
+        if (lastKnown != null)
+            onLocationChanged(lastKnown);
+        locationManager.requestLocationUpdates(
+                provider, LOCATION_MIN_TIME_MS, LOCATION_MIN_DISTANCE_M, this
+        );
+        locationUpdates = true;
+    }
+
+    private void stopLocationUpdates() {
+        if (!locationUpdates)
+            return;
+        LocationManager locationManager = (LocationManager)
+                requireContext().getSystemService(Context.LOCATION_SERVICE);
+        locationManager.removeUpdates(this);
+        locationUpdates = false;
+        sortedFrom = null;
+    }
+
+
+    /** Location updates callbacks **/
+
+    @Override
+    public void onLocationChanged(@NonNull Location location) {
+        // Each sort is a pass over the list: not worth it for small moves
+        if (sortedFrom != null && sortedFrom.distanceTo(location) < RESORT_DISTANCE_M)
+            return;
+        sortedFrom = location;
+        geofavoriteAdapter.setUserPosition(location.getLatitude(), location.getLongitude());
+    }
+
+    @Override
+    public void onStatusChanged(String provider, int status, Bundle extras) {}
+
+    @Override
+    public void onProviderEnabled(@NonNull String provider) {}
+
+    @Override
+    public void onProviderDisabled(@NonNull String provider) {}
+
+
+    /** Position permission granted, requested through MainActivity **/
+
+    @Override
+    public void onGpsPermissionGranted() {
+        if (isAdded())
+            updateLocationUpdates();
     }
 
     private void openSortingOrderDialogFragment(int sortOrder) {
@@ -4,10 +4,14 @@ import android.Manifest;
 import android.content.Intent;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.graphics.drawable.BitmapDrawable;
 import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -18,11 +22,14 @@ import androidx.annotation.Nullable;
 import androidx.appcompat.content.res.AppCompatResources;
 import androidx.core.app.ActivityCompat;
 import androidx.core.content.res.ResourcesCompat;
-import androidx.core.graphics.drawable.DrawableCompat;
 import androidx.lifecycle.Observer;
 
 import org.osmdroid.api.IMapController;
 import org.osmdroid.events.MapEventsReceiver;
+import org.osmdroid.events.MapListener;
+import org.osmdroid.events.ScrollEvent;
+import org.osmdroid.events.ZoomEvent;
+import org.osmdroid.util.BoundingBox;
 import org.osmdroid.util.GeoPoint;
 import org.osmdroid.views.CustomZoomButtonsController;
 import org.osmdroid.views.MapView;
@@ -33,29 +40,64 @@ import org.osmdroid.views.overlay.infowindow.InfoWindow;
 import org.osmdroid.views.overlay.mylocation.GpsMyLocationProvider;
 import org.osmdroid.views.overlay.mylocation.MyLocationNewOverlay;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Objects;
 import java.util.Set;
 
 import com.nickgirga.nextcloudmapsgeofavorites.R;
 import com.nickgirga.nextcloudmapsgeofavorites.activity.detail.GeofavoriteDetailActivity;
 import com.nickgirga.nextcloudmapsgeofavorites.activity.main.MainActivity;
 import com.nickgirga.nextcloudmapsgeofavorites.activity.mappicker.MapPickerActivity;
+import com.nickgirga.nextcloudmapsgeofavorites.model.ClusterIndex;
 import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteSelection;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteTable;
+import com.nickgirga.nextcloudmapsgeofavorites.utils.CategoryIcons;
 import com.nickgirga.nextcloudmapsgeofavorites.utils.GeoUriParser;
 import com.nickgirga.nextcloudmapsgeofavorites.utils.MapUtils;
 import com.nickgirga.nextcloudmapsgeofavorites.utils.SettingsManager;
 import com.nickgirga.nextcloudmapsgeofavorites.views.GeofavMarkerInfoWindow;
+import com.nickgirga.nextcloudmapsgeofavorites.views.GeofavPinsOverlay;
 
 public class GeofavoriteMapFragment extends GeofavoritesFragment implements MainActivity.OnGpsPermissionGrantedListener {
+    // Minimum delay between marker updates while the map moves
+    private static final long VIEWPORT_UPDATE_MS = 100;
 
     private MapView map;
     private MyLocationNewOverlay mLocationOverlay;
+    // Clusters of the shown geofavorites, null until the first ones are built
+    private ClusterIndex clusters;
+    // Area (minLat, minLng, maxLat, maxLng, minLng > maxLng across the antimeridian) and level zoom
+    // of the markers shown, null if none
+    private double[] shownArea;
+    private int shownLevelZoom;
+    // Markers are shown for the viewport extended by this fraction of its height and width on each
+    // side, see SettingsManager.getMapViewportMargin()
+    private double viewportMargin;
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private boolean updatePending = false;
+    // Pins of the geofavorites shown, and their index in the clustered items
+    private GeofavPinsOverlay pinsOverlay;
+    private int[] pinItems = new int[0];
+    // Marker of the geofavorite whose info window is open, not added to the map
+    private Marker selectedMarker;
+    // Cluster markers shown, by appearance
+    private HashMap<ClusterKey, Marker> clusterMarkers = new HashMap<>();
+    private final Runnable updateMarkers = () -> {
+        updatePending = false;
+        if (needsMarkersUpdate())
+            showClusters();
+    };
 
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
         MapUtils.configOsmdroid(requireContext());
+        viewportMargin = SettingsManager.getMapViewportMargin(requireContext());
     }
 
     @Nullable
@@ -89,6 +131,25 @@ public class GeofavoriteMapFragment extends GeofavoritesFragment implements Main
             }
         });
         map.getOverlays().add(0, meo);
+        pinsOverlay = new GeofavPinsOverlay(requireContext());
+        pinsOverlay.setOnPinClickListener(pin -> {
+            showInfoWindow(clusters.getItems().get(pinItems[pin]));
+            return true;
+        });
+        map.getOverlays().add(pinsOverlay);
+        map.addMapListener(new MapListener() {
+            @Override
+            public boolean onScroll(ScrollEvent event) {
+                onViewportChange();
+                return false;
+            }
+
+            @Override
+            public boolean onZoom(ZoomEvent event) {
+                onViewportChange();
+                return false;
+            }
+        });
         showUserPosition();
 
         // Setup view listeners
@@ -110,6 +171,14 @@ public class GeofavoriteMapFragment extends GeofavoritesFragment implements Main
             }
         });
 
+        mGeofavoritesFragmentViewModel.getClusters().observe(getViewLifecycleOwner(), new Observer<ClusterIndex>() {
+            @Override
+            public void onChanged(ClusterIndex clusterIndex) {
+                clusters = clusterIndex;
+                showClusters();
+            }
+        });
+
         return v;
     }
 
@@ -120,11 +189,150 @@ public class GeofavoriteMapFragment extends GeofavoritesFragment implements Main
         ((MainActivity)requireActivity()).addOnGpsPermissionGrantedListener(this);
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        handler.removeCallbacks(updateMarkers);
+        updatePending = false;
+        shownArea = null;
+        // Overlays belong to the destroyed map view
+        pinItems = new int[0];
+        selectedMarker = null;
+        clusterMarkers.clear();
+    }
+
     @Override
     public void onDatasetChange(List<Geofavorite> items) {
-        clearAllMarkers();
-        for(Geofavorite gf : items)
-            addMarker(gf);
+        // Markers are updated once the clusters are built
+        mGeofavoritesFragmentViewModel.cluster(items);
+    }
+
+    /**
+     * Throttles the marker updates while the map moves: at most one every VIEWPORT_UPDATE_MS,
+     * and only once the viewport leaves the area of the markers shown or the level zoom changes
+     */
+    private void onViewportChange() {
+        if (updatePending || !needsMarkersUpdate())
+            return;
+        updatePending = true;
+        handler.postDelayed(updateMarkers, VIEWPORT_UPDATE_MS);
+    }
+
+    private boolean needsMarkersUpdate() {
+        if (clusters == null)
+            return false;
+        if (shownArea == null || ClusterIndex.levelZoom(map.getZoomLevelDouble()) != shownLevelZoom)
+            return true;
+        BoundingBox box = map.getBoundingBox();
+        if (box.getLatSouth() < shownArea[0] || box.getLatNorth() > shownArea[2])
+            return true;
+        return !containsLongitudes(shownArea[1], shownArea[3], box.getLonWest(), box.getLonEast());
+    }
+
+    /**
+     * @return true if the longitude range west to east contains the other one, ranges with west > east
+     * crossing the antimeridian
+     */
+    private static boolean containsLongitudes(double west, double east, double otherWest, double otherEast) {
+        double width = east >= west ? east - west : east - west + 360;
+        double otherWidth = otherEast >= otherWest ? otherEast - otherWest : otherEast - otherWest + 360;
+        double offset = otherWest >= west ? otherWest - west : otherWest - west + 360;
+        return offset + otherWidth <= width;
+    }
+
+    /**
+     * Shows the clusters and geofavorites of the current zoom in the viewport and its margin.
+     * Geofavorites are drawn by the pins overlay. Only the differences with the cluster markers shown
+     * are applied: markers of the clusters still shown are kept.
+     */
+    private void showClusters() {
+        if (clusters == null)
+            return;
+        double zoom = map.getZoomLevelDouble();
+        BoundingBox box = map.getBoundingBox();
+        double latMargin = (box.getLatNorth() - box.getLatSouth()) * viewportMargin;
+        double width = box.getLonEast() >= box.getLonWest() ? box.getLonEast() - box.getLonWest()
+                : box.getLonEast() - box.getLonWest() + 360;
+        double lngMargin = width * viewportMargin;
+        double minLat = Math.max(-90, box.getLatSouth() - latMargin);
+        double maxLat = Math.min(90, box.getLatNorth() + latMargin);
+        double minLng = -180, maxLng = 180;
+        if (width + 2 * lngMargin < 360) {
+            minLng = wrapLongitude(box.getLonWest() - lngMargin);
+            maxLng = wrapLongitude(box.getLonEast() + lngMargin);
+        }
+        shownArea = new double[]{minLat, minLng, maxLat, maxLng};
+        shownLevelZoom = ClusterIndex.levelZoom(zoom);
+
+        GeofavoriteSelection items = clusters.getItems();
+        GeofavoriteTable table = items.getSnapshot().getTable();
+        // Colors of the categories, offset by one for NO_CATEGORY
+        int[] categoryColors = new int[table.getCategoryCount() + 1];
+        for (int categoryId = GeofavoriteTable.NO_CATEGORY; categoryId < table.getCategoryCount(); categoryId++) {
+            categoryColors[categoryId + 1] = CategoryIcons.color(requireContext(),
+                    categoryId == GeofavoriteTable.NO_CATEGORY ? null : table.getCategoryName(categoryId));
+        }
+
+        int[] entries = clusters.query(zoom, minLat, minLng, maxLat, maxLng);
+        double[] pinLats = new double[entries.length], pinLngs = new double[entries.length];
+        int[] pinColors = new int[entries.length];
+        int[] shownItems = new int[entries.length];
+        int pinCount = 0;
+        HashMap<ClusterKey, Marker> shownClusters = new HashMap<>();
+        List<Overlay> added = new ArrayList<>();
+        for (int entry : entries) {
+            int item = clusters.getItem(zoom, entry);
+            if (item != ClusterIndex.NO_ITEM) {
+                int row = items.getRow(item);
+                pinLats[pinCount] = table.getLat(row);
+                pinLngs[pinCount] = table.getLng(row);
+                pinColors[pinCount] = categoryColors[table.getCategoryId(row) + 1];
+                shownItems[pinCount] = item;
+                pinCount++;
+            } else {
+                double lat = clusters.getLat(zoom, entry), lng = clusters.getLng(zoom, entry);
+                int count = clusters.getCount(zoom, entry);
+                int expansionZoom = clusters.getExpansionZoom(zoom, entry);
+                int color = categoryColors[clusters.getCategoryId(zoom, entry) + 1];
+                ClusterKey key = new ClusterKey(lat, lng, count, color, expansionZoom);
+                Marker m = clusterMarkers.remove(key);
+                if (m == null) {
+                    m = createClusterMarker(new GeoPoint(lat, lng), count, color, expansionZoom);
+                    added.add(m);
+                }
+                shownClusters.put(key, m);
+            }
+        }
+        pinItems = Arrays.copyOf(shownItems, pinCount);
+        pinsOverlay.setPins(Arrays.copyOf(pinLats, pinCount), Arrays.copyOf(pinLngs, pinCount),
+                Arrays.copyOf(pinColors, pinCount));
+
+        // Keeps the info window open while its geofavorite is shown, updated if it changed
+        if (selectedMarker != null && selectedMarker.isInfoWindowShown()) {
+            Geofavorite selected = (Geofavorite) selectedMarker.getRelatedObject();
+            Geofavorite current = null;
+            for (int item : pinItems) {
+                if (table.getId(items.getRow(item)) == selected.getId()) {
+                    current = items.get(item);
+                    break;
+                }
+            }
+            if (current == null)
+                selectedMarker.closeInfoWindow();
+            else if (current != selected) {
+                bindMarker(selectedMarker, current);
+                selectedMarker.showInfoWindow();
+            }
+        }
+
+        // Markers left are no longer shown
+        List<Overlay> removed = new ArrayList<>(clusterMarkers.values());
+        clusterMarkers = shownClusters;
+        // Applied at once: the overlay list is copied on each modification
+        if (!removed.isEmpty())
+            map.getOverlays().removeAll(removed);
+        if (!added.isEmpty())
+            map.getOverlays().addAll(added);
         map.invalidate();
     }
 
@@ -186,12 +394,26 @@ public class GeofavoriteMapFragment extends GeofavoritesFragment implements Main
             map.getController().animateTo(mLocationOverlay.getMyLocation());
     }
 
-    private void addMarker(Geofavorite geofavorite){
+    /**
+     * Opens the info window of the geofavorite, centering the map on it
+     */
+    private void showInfoWindow(Geofavorite geofavorite) {
+        if (selectedMarker == null)
+            selectedMarker = new Marker(map);
+        bindMarker(selectedMarker, geofavorite);
+        selectedMarker.showInfoWindow();
+        map.getController().animateTo(selectedMarker.getPosition());
+    }
+
+    /**
+     * Sets the position, icon, texts and info window of the marker from the geofavorite
+     */
+    private void bindMarker(Marker m, Geofavorite geofavorite){
         GeoPoint pos = new GeoPoint(geofavorite.getLat(), geofavorite.getLng());
 
         // Set icon and color
-        Drawable icon = DrawableCompat.wrap(AppCompatResources.getDrawable(requireContext(), R.drawable.ic_map_pin));
-        DrawableCompat.setTint(icon, geofavorite.categoryColor() == 0 ? requireContext().getColor(R.color.defaultBrand) : geofavorite.categoryColor());
+        Drawable icon = CategoryIcons.pin(requireContext(), R.drawable.ic_map_pin,
+                CategoryIcons.color(requireContext(), geofavorite.getCategory()));
 
         // Set infowindow (popup opened on marker click) and its listeners
         GeofavMarkerInfoWindow iw = new GeofavMarkerInfoWindow(map, geofavorite);
@@ -215,8 +437,9 @@ public class GeofavoriteMapFragment extends GeofavoritesFragment implements Main
             }
         });
 
-        // Set marker
-        Marker m = new Marker(map);
+        // Set marker, closing the info window of the previous geofavorite if open
+        if (m.isInfoWindowShown())
+            m.closeInfoWindow();
         m.setPosition(pos);
         m.setAnchor(Marker.ANCHOR_CENTER, Marker.ANCHOR_BOTTOM);
         m.setIcon(icon);
@@ -224,17 +447,74 @@ public class GeofavoriteMapFragment extends GeofavoritesFragment implements Main
         m.setSnippet(geofavorite.getComment());
         m.setSubDescription(geofavorite.getCategory());
         m.setInfoWindow(iw);
-        map.getOverlays().add(m);
+        m.setRelatedObject(geofavorite);
     }
 
-    private void clearAllMarkers() {
-        // Close any open infowindow before removing related marker
-        InfoWindow.closeAllInfoWindowsOn(map);
-        // Remove all markers, leaving the other overlays (user position and tap listener ones)
-        for(Overlay o : map.getOverlays()) {
-            if (o instanceof Marker) {
-                map.getOverlays().remove(o);
-            }
+    private static double wrapLongitude(double lng) {
+        return lng < -180 ? lng + 360 : lng > 180 ? lng - 360 : lng;
+    }
+
+    /**
+     * Creates a marker showing the number of geofavorites of a cluster, zooming in on it when tapped
+     * @param color of the main category of the cluster, 0 for the default one
+     */
+    private Marker createClusterMarker(GeoPoint pos, int count, int color, int expansionZoom) {
+        Marker m = new Marker(map);
+        m.setPosition(pos);
+        m.setAnchor(Marker.ANCHOR_CENTER, Marker.ANCHOR_CENTER);
+        m.setIcon(clusterIcon(count, color == 0 ? requireContext().getColor(R.color.defaultBrand) : color));
+        m.setOnMarkerClickListener((marker, mapView) -> {
+            InfoWindow.closeAllInfoWindowsOn(map);
+            map.getController().animateTo(marker.getPosition(), (double) expansionZoom, null);
+            return true;
+        });
+        return m;
+    }
+
+    private Drawable clusterIcon(int count, int color) {
+        float density = getResources().getDisplayMetrics().density;
+        // Larger clusters are drawn slightly larger
+        int size = Math.round((count < 100 ? 36 : count < 1000 ? 42 : 48) * density);
+        Bitmap bitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(bitmap);
+        Paint paint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        paint.setColor(color);
+        canvas.drawCircle(size / 2f, size / 2f, size / 2f, paint);
+        paint.setColor(0xFFFFFFFF);
+        paint.setTextSize(14 * density);
+        paint.setTextAlign(Paint.Align.CENTER);
+        paint.setFakeBoldText(true);
+        canvas.drawText(String.valueOf(count), size / 2f, size / 2f - (paint.descent() + paint.ascent()) / 2, paint);
+        return new BitmapDrawable(getResources(), bitmap);
+    }
+
+    /**
+     * Appearance of a cluster marker: a marker can be kept for an equal cluster of another dataset
+     */
+    private static final class ClusterKey {
+        final double lat, lng;
+        final int count, color, expansionZoom;
+
+        ClusterKey(double lat, double lng, int count, int color, int expansionZoom) {
+            this.lat = lat;
+            this.lng = lng;
+            this.count = count;
+            this.color = color;
+            this.expansionZoom = expansionZoom;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ClusterKey))
+                return false;
+            ClusterKey other = (ClusterKey) o;
+            return lat == other.lat && lng == other.lng && count == other.count
+                    && color == other.color && expansionZoom == other.expansionZoom;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(lat, lng, count, color, expansionZoom);
         }
     }
 }
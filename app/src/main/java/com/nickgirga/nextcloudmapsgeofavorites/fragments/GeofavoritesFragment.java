@@ -28,9 +28,9 @@ import com.nextcloud.android.sso.helper.SingleAccountHelper;
 import com.nextcloud.android.sso.model.SingleSignOnAccount;
 import com.squareup.picasso.Picasso;
 
-import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 
 import com.nickgirga.nextcloudmapsgeofavorites.R;
 import com.nickgirga.nextcloudmapsgeofavorites.activity.detail.CategoriesAdapter;
@@ -38,7 +38,10 @@ import com.nickgirga.nextcloudmapsgeofavorites.activity.detail.GeofavoriteDetail
 import com.nickgirga.nextcloudmapsgeofavorites.activity.main.GeofavoritesFragmentViewModel;
 import com.nickgirga.nextcloudmapsgeofavorites.activity.main.MainActivity;
 import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
-import com.nickgirga.nextcloudmapsgeofavorites.utils.GeofavoritesFilter;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteCategory;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteSnapshot;
+import com.nickgirga.nextcloudmapsgeofavorites.utils.CategoryIcons;
+import com.nickgirga.nextcloudmapsgeofavorites.utils.FilterCriteria;
 import com.nickgirga.nextcloudmapsgeofavorites.utils.IntentGenerator;
 
 /**
@@ -53,8 +56,10 @@ public abstract class GeofavoritesFragment extends Fragment {
     private View homeToolbar;
     private SearchView searchView;
     private ImageButton filterButton;
-    private List<Geofavorite> geofavorites = new ArrayList<>();
-    private HashSet<String> categories = new HashSet<>();
+    private GeofavoriteSnapshot geofavorites = GeofavoriteSnapshot.EMPTY;
+    private Map<String, GeofavoriteCategory> categories = Collections.emptyMap();
+    // Search text and category filter, applied together
+    private FilterCriteria criteria = FilterCriteria.NONE;
 
     @Override
     public void onCreate(@Nullable Bundle savedInstanceState) {
@@ -100,23 +105,30 @@ public abstract class GeofavoritesFragment extends Fragment {
 
             @Override
             public boolean onQueryTextChange(String query) {
-                onDatasetChange(
-                    (new GeofavoritesFilter(geofavorites)).byText(query)
-                );
+                criteria = criteria.withText(query);
+                applyCriteria();
                 return false;
             }
         });
 
-        mGeofavoritesFragmentViewModel.getGeofavorites().observe(getViewLifecycleOwner(), new Observer<List<Geofavorite>>() {
+        mGeofavoritesFragmentViewModel.getGeofavorites().observe(getViewLifecycleOwner(), new Observer<GeofavoriteSnapshot>() {
             @Override
-            public void onChanged(List<Geofavorite> geofavorites) {
+            public void onChanged(GeofavoriteSnapshot geofavorites) {
                 GeofavoritesFragment.this.geofavorites = geofavorites;
-                onDatasetChange(geofavorites);
+                // Keep the current filters applied. Goes through the search even without filters,
+                // so that a pending result for the previous snapshot is discarded.
+                applyCriteria();
             }
         });
-        mGeofavoritesFragmentViewModel.getCategories().observe(getViewLifecycleOwner(), new Observer<HashSet<String>>() {
+        mGeofavoritesFragmentViewModel.getSearchResults().observe(getViewLifecycleOwner(), new Observer<List<Geofavorite>>() {
             @Override
-            public void onChanged(HashSet<String> categories) {
+            public void onChanged(List<Geofavorite> results) {
+                onDatasetChange(results);
+            }
+        });
+        mGeofavoritesFragmentViewModel.getCategories().observe(getViewLifecycleOwner(), new Observer<Map<String, GeofavoriteCategory>>() {
+            @Override
+            public void onChanged(Map<String, GeofavoriteCategory> categories) {
                 GeofavoritesFragment.this.categories = categories;
             }
         });
@@ -152,6 +164,8 @@ public abstract class GeofavoritesFragment extends Fragment {
 
         // Reset filter and update data
         filterButton.setImageResource(R.drawable.ic_filter_off);
+        if (criteria.hasCategories())
+            filterByCategory(null);
         mGeofavoritesFragmentViewModel.updateGeofavorites();
     }
 
@@ -231,12 +245,7 @@ public abstract class GeofavoritesFragment extends Fragment {
                 String categoryName = ca.getItem(which);
                 filterButton.setImageResource(R.drawable.ic_filter);
                 Drawable d = filterButton.getDrawable();
-                DrawableCompat.setTint(
-                        d,
-                        Geofavorite.categoryColorFromName(categoryName) == 0
-                                ? requireContext().getColor(R.color.defaultBrand)
-                                : Geofavorite.categoryColorFromName(categoryName)
-                );
+                DrawableCompat.setTint(d, CategoryIcons.color(requireContext(), categoryName));
                 filterByCategory(categoryName);
             }
         });
@@ -259,9 +268,13 @@ public abstract class GeofavoritesFragment extends Fragment {
     }
 
     private void filterByCategory(String category) {
-        onDatasetChange(
-                (new GeofavoritesFilter(geofavorites)).byCategory(category)
-        );
+        criteria = criteria.withCategories(category != null
+                ? Collections.singleton(category) : Collections.emptySet());
+        applyCriteria();
+    }
+
+    private void applyCriteria() {
+        mGeofavoritesFragmentViewModel.search(geofavorites, criteria);
     }
 
 }
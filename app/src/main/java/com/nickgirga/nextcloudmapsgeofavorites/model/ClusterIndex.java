@@ -0,0 +1,347 @@
+package com.nickgirga.nextcloudmapsgeofavorites.model;
+
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Hierarchy of marker clusters, one level per map zoom, in the style of supercluster: the points
+ * (Web Mercator projected geofavorites) are grouped with their neighbors within CLUSTER_RADIUS pixels
+ * at the highest zoom, then the resulting clusters are grouped in turn at the zoom below, and so on.
+ * Entries without neighbors are carried over as they are. Each level is indexed by a grid of cells
+ * as large as the radius it is clustered with, the one of the zoom below (entries sorted by cell), so
+ * that the neighbors of an entry and the entries in a viewport are found without scanning the level.
+ * Entries of a level are designated by their index, see query().
+ * Immutable, built in background once per dataset, see GeofavoritesClustering.
+ */
+public final class ClusterIndex {
+    public static final int MIN_ZOOM = 0;
+    // Above this zoom, every geofavorite is shown on its own
+    public static final int MAX_ZOOM = 16;
+    public static final int NO_ITEM = -1;
+
+    private static final double CLUSTER_RADIUS = 60;
+    private static final double TILE_SIZE = 256;
+    // Web Mercator bounds
+    private static final double MAX_LAT = 85.05112878;
+
+    private final GeofavoriteSelection mItems;
+    // Levels from MIN_ZOOM to MAX_ZOOM + 1, the last one holding the points
+    private final Level[] mLevels;
+
+    private ClusterIndex(GeofavoriteSelection items, Level[] levels) {
+        this.mItems = items;
+        this.mLevels = levels;
+    }
+
+    /**
+     * @param signal checked between levels, to abort a build that is no longer needed
+     * @throws OperationCanceledException if the signal is canceled
+     */
+    public static ClusterIndex of(GeofavoriteSelection items, @Nullable CancellationSignal signal) {
+        GeofavoriteTable table = items.getSnapshot().getTable();
+        int size = items.size();
+        Level points = new Level(size);
+        for (int i = 0; i < size; i++) {
+            int row = items.getRow(i);
+            points.add(mercatorX(table.getLng(row)), mercatorY(table.getLat(row)), 1, i,
+                    table.getCategoryId(row), MAX_ZOOM + 1);
+        }
+
+        Level[] levels = new Level[MAX_ZOOM - MIN_ZOOM + 2];
+        levels[levels.length - 1] = points;
+        // Each level is indexed with the radius the next one groups its entries with
+        points.index(radius(MAX_ZOOM));
+        // Points of each category in the cluster being built, offset by one for NO_CATEGORY
+        int[] categoryCounts = new int[table.getCategoryCount() + 1];
+        for (int zoom = MAX_ZOOM; zoom >= MIN_ZOOM; zoom--) {
+            if (signal != null)
+                signal.throwIfCanceled();
+            Level level = cluster(levels[zoom - MIN_ZOOM + 1], zoom, categoryCounts);
+            level.index(radius(zoom - 1));
+            levels[zoom - MIN_ZOOM] = level;
+        }
+        return new ClusterIndex(items, levels);
+    }
+
+    /**
+     * Groups each entry of the level above with its neighbors not yet grouped
+     */
+    private static Level cluster(Level above, int zoom, int[] categoryCounts) {
+        double radius = radius(zoom);
+        Level level = new Level(above.size);
+        boolean[] grouped = new boolean[above.size];
+        IntList neighbors = new IntList();
+        for (int i = 0; i < above.size; i++) {
+            if (grouped[i])
+                continue;
+            grouped[i] = true;
+
+            neighbors.clear();
+            above.neighbors(above.x[i], above.y[i], radius, neighbors);
+            int count = above.counts[i];
+            double x = above.x[i] * count, y = above.y[i] * count;
+            // Votes weighted by the sizes of the grouped clusters: approximate for clusters of clusters
+            categoryCounts[above.categoryIds[i] + 1] = count;
+            int dominant = above.categoryIds[i];
+            boolean clustered = false;
+            for (int n = 0; n < neighbors.size; n++) {
+                int neighbor = neighbors.values[n];
+                if (grouped[neighbor])
+                    continue;
+                grouped[neighbor] = true;
+                clustered = true;
+                int neighborCount = above.counts[neighbor];
+                count += neighborCount;
+                x += above.x[neighbor] * neighborCount;
+                y += above.y[neighbor] * neighborCount;
+                int categoryId = above.categoryIds[neighbor];
+                categoryCounts[categoryId + 1] += neighborCount;
+                if (categoryCounts[categoryId + 1] > categoryCounts[dominant + 1])
+                    dominant = categoryId;
+            }
+
+            // Reset for the next cluster
+            categoryCounts[above.categoryIds[i] + 1] = 0;
+            for (int n = 0; n < neighbors.size; n++)
+                categoryCounts[above.categoryIds[neighbors.values[n]] + 1] = 0;
+
+            if (!clustered) {
+                level.add(above.x[i], above.y[i], above.counts[i], above.items[i], above.categoryIds[i], above.expansionZooms[i]);
+                continue;
+            }
+            level.add(x / count, y / count, count, NO_ITEM, dominant, zoom + 1);
+        }
+        return level;
+    }
+
+    public GeofavoriteSelection getItems() {
+        return mItems;
+    }
+
+    /**
+     * @return the entries of the level of the zoom inside the bounding box
+     * @param minLng greater than maxLng for a box crossing the antimeridian
+     */
+    public int[] query(double zoom, double minLat, double minLng, double maxLat, double maxLng) {
+        Level level = level(zoom);
+        double minX = mercatorX(minLng), maxX = mercatorX(maxLng);
+        double minY = mercatorY(maxLat), maxY = mercatorY(minLat);
+        IntList entries = new IntList();
+        if (minLng > maxLng) {
+            level.range(minX, minY, 1, maxY, entries);
+            level.range(0, minY, maxX, maxY, entries);
+        } else {
+            level.range(minX, minY, maxX, maxY, entries);
+        }
+        return Arrays.copyOf(entries.values, entries.size);
+    }
+
+    public double getLat(double zoom, int entry) {
+        double y = level(zoom).y[entry];
+        return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y))));
+    }
+
+    public double getLng(double zoom, int entry) {
+        return level(zoom).x[entry] * 360 - 180;
+    }
+
+    /**
+     * @return the number of geofavorites of the entry, 1 if it is a single geofavorite
+     */
+    public int getCount(double zoom, int entry) {
+        return level(zoom).counts[entry];
+    }
+
+    /**
+     * @return the index in getItems() of the geofavorite of the entry, or NO_ITEM for a cluster
+     */
+    public int getItem(double zoom, int entry) {
+        return level(zoom).items[entry];
+    }
+
+    /**
+     * @return the category of the entry, or the category of most of its geofavorites for a cluster
+     * (see GeofavoriteTable.getCategoryName())
+     */
+    public int getCategoryId(double zoom, int entry) {
+        return level(zoom).categoryIds[entry];
+    }
+
+    /**
+     * @return the zoom at which a cluster splits into several entries
+     */
+    public int getExpansionZoom(double zoom, int entry) {
+        return level(zoom).expansionZooms[entry];
+    }
+
+    /**
+     * @return the zoom of the level shown at the given map zoom: entries are the same for map zooms
+     * with the same level zoom
+     */
+    public static int levelZoom(double zoom) {
+        return Math.max(MIN_ZOOM, Math.min(MAX_ZOOM + 1, (int) Math.floor(zoom)));
+    }
+
+    private Level level(double zoom) {
+        return mLevels[levelZoom(zoom) - MIN_ZOOM];
+    }
+
+    /**
+     * @return the cluster radius at the zoom, in Web Mercator units (the world being 1 wide)
+     */
+    private static double radius(int zoom) {
+        return CLUSTER_RADIUS / (TILE_SIZE * Math.pow(2, zoom));
+    }
+
+    private static double mercatorX(double lng) {
+        return lng / 360 + 0.5;
+    }
+
+    private static double mercatorY(double lat) {
+        double sin = Math.sin(Math.toRadians(Math.max(-MAX_LAT, Math.min(MAX_LAT, lat))));
+        return 0.5 - Math.log((1 + sin) / (1 - sin)) / (4 * Math.PI);
+    }
+
+    /**
+     * Entries of a zoom level, in parallel arrays, indexed by a grid
+     */
+    private static class Level {
+        int size = 0;
+        double[] x, y;
+        int[] counts;
+        // Index in the items for single geofavorites, NO_ITEM for clusters
+        int[] items;
+        int[] categoryIds;
+        int[] expansionZooms;
+        double cellSize;
+        // Entries sorted by cell, and their cell keys
+        int[] sorted;
+        long[] sortedCells;
+
+        Level(int capacity) {
+            x = new double[capacity];
+            y = new double[capacity];
+            counts = new int[capacity];
+            items = new int[capacity];
+            categoryIds = new int[capacity];
+            expansionZooms = new int[capacity];
+        }
+
+        void add(double x, double y, int count, int item, int categoryId, int expansionZoom) {
+            this.x[size] = x;
+            this.y[size] = y;
+            counts[size] = count;
+            items[size] = item;
+            categoryIds[size] = categoryId;
+            expansionZooms[size] = expansionZoom;
+            size++;
+        }
+
+        void index(double cellSize) {
+            this.cellSize = cellSize;
+            long[] cells = new long[size];
+            sorted = new int[size];
+            for (int i = 0; i < size; i++) {
+                cells[i] = key((long) Math.floor(x[i] / cellSize), (long) Math.floor(y[i] / cellSize));
+                sorted[i] = i;
+            }
+            GeofavoriteTable.sortRows(sorted, size, (i0, i1) -> Long.compare(cells[i0], cells[i1]));
+            sortedCells = new long[size];
+            for (int i = 0; i < size; i++)
+                sortedCells[i] = cells[sorted[i]];
+
+            // Trimmed, as no entries are added after indexing
+            x = Arrays.copyOf(x, size);
+            y = Arrays.copyOf(y, size);
+            counts = Arrays.copyOf(counts, size);
+            items = Arrays.copyOf(items, size);
+            categoryIds = Arrays.copyOf(categoryIds, size);
+            expansionZooms = Arrays.copyOf(expansionZooms, size);
+        }
+
+        /**
+         * Adds the entries within the radius of the point. Only the adjacent cells are scanned when the
+         * radius is at most the cell size, as it is when indexed for it.
+         */
+        void neighbors(double px, double py, double radius, IntList neighbors) {
+            long cellX = (long) Math.floor(px / cellSize), cellY = (long) Math.floor(py / cellSize);
+            long span = Math.max(1, (long) Math.ceil(radius / cellSize));
+            double radius2 = radius * radius;
+            for (long cx = cellX - span; cx <= cellX + span; cx++) {
+                for (long cy = cellY - span; cy <= cellY + span; cy++) {
+                    long cell = key(cx, cy);
+                    for (int s = firstInCell(cell); s < size && sortedCells[s] == cell; s++) {
+                        int i = sorted[s];
+                        double dx = x[i] - px, dy = y[i] - py;
+                        if (dx * dx + dy * dy <= radius2)
+                            neighbors.add(i);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Adds the entries inside the rectangle, bounds included
+         */
+        void range(double minX, double minY, double maxX, double maxY, IntList entries) {
+            long minCellX = (long) Math.floor(minX / cellSize), maxCellX = (long) Math.floor(maxX / cellSize);
+            long minCellY = (long) Math.floor(minY / cellSize), maxCellY = (long) Math.floor(maxY / cellSize);
+            // Scanning the entries is cheaper than looking up more cells than there are entries
+            if ((maxCellX - minCellX + 1) * (maxCellY - minCellY + 1) > size) {
+                for (int i = 0; i < size; i++) {
+                    if (x[i] >= minX && x[i] <= maxX && y[i] >= minY && y[i] <= maxY)
+                        entries.add(i);
+                }
+                return;
+            }
+            for (long cx = minCellX; cx <= maxCellX; cx++) {
+                for (long cy = minCellY; cy <= maxCellY; cy++) {
+                    long cell = key(cx, cy);
+                    for (int s = firstInCell(cell); s < size && sortedCells[s] == cell; s++) {
+                        int i = sorted[s];
+                        if (x[i] >= minX && x[i] <= maxX && y[i] >= minY && y[i] <= maxY)
+                            entries.add(i);
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return the position in sorted of the first entry of the cell, or of the next cell
+         */
+        private int firstInCell(long cell) {
+            int low = 0, high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (sortedCells[middle] < cell)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            return low;
+        }
+
+        private static long key(long cellX, long cellY) {
+            return (cellX << 32) ^ (cellY & 0xffffffffL);
+        }
+    }
+
+    private static class IntList {
+        int[] values = new int[16];
+        int size = 0;
+
+        void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        void clear() {
+            size = 0;
+        }
+    }
+}
@@ -22,6 +22,7 @@ package com.nickgirga.nextcloudmapsgeofavorites.model;
 
 import android.graphics.Color;
 import android.net.Uri;
+import android.util.LruCache;
 import android.widget.Filter;
 
 import androidx.annotation.NonNull;
@@ -40,10 +41,13 @@ import java.util.Comparator;
 import java.util.List;
 
 import com.nickgirga.nextcloudmapsgeofavorites.utils.GeoUriParser;
+import com.nickgirga.nextcloudmapsgeofavorites.utils.SearchKey;
 
 public class Geofavorite implements Serializable {
     public static final String DEFAULT_CATEGORY = "Personal";
     private static final double EARTH_RADIUS = 6371; // https://en.wikipedia.org/wiki/Earth_radius
+    // Colors of the categories seen, see categoryColorFromName()
+    private static final LruCache<String, Integer> CATEGORY_COLORS = new LruCache<>(256);
 
     /**
      * JSON Definition:
@@ -86,6 +90,29 @@ public class Geofavorite implements Serializable {
     @Nullable
     @SerializedName("comment") private String comment;
 
+    // Normalized name and comment, computed on first search (see getSearchKey())
+    @Nullable
+    private transient String searchKey;
+
+    public Geofavorite() {
+    }
+
+    /**
+     * Copy constructor: published geofavorites are shared between threads and must not be modified,
+     * edit a copy instead
+     */
+    public Geofavorite(Geofavorite other) {
+        this.id = other.id;
+        this.name = other.name;
+        this.dateModified = other.dateModified;
+        this.dateCreated = other.dateCreated;
+        this.lat = other.lat;
+        this.lng = other.lng;
+        this.category = other.category;
+        this.comment = other.comment;
+        this.searchKey = other.searchKey;
+    }
+
     public int getId() {
         return id;
     }
@@ -100,8 +127,10 @@ public class Geofavorite implements Serializable {
     }
 
     public void setName(String name) {
-        if (!name.equals(this.name))
+        if (!name.equals(this.name)) {
             this.name = name;
+            this.searchKey = null;
+        }
     }
 
     public long getDateModified() {
@@ -152,6 +181,22 @@ public class Geofavorite implements Serializable {
     }
     public void setComment(String comment) {
         this.comment = comment;
+        this.searchKey = null;
+    }
+
+    /**
+     * @return the name and comment normalized for text search (see SearchKey). Cached: as published
+     * geofavorites are not modified, and unchanged ones are shared by consecutive snapshots, it is
+     * computed once per geofavorite version.
+     */
+    public String getSearchKey() {
+        // Racing threads may compute it twice, which is harmless
+        String key = searchKey;
+        if (key == null) {
+            key = SearchKey.of(name, comment);
+            searchKey = key;
+        }
+        return key;
     }
 
     /**
@@ -160,7 +205,6 @@ public class Geofavorite implements Serializable {
     public static Comparator<Geofavorite> ByTitleAZ = (gf0, gf1) -> gf0.name.compareTo(gf1.name);
     public static Comparator<Geofavorite> ByLastCreated = (gf0, gf1) -> (int) (gf1.dateCreated - gf0.dateCreated);
     public static Comparator<Geofavorite> ByCategory = (gf0, gf1) -> (gf0.category + gf0.name).compareTo(gf1.category + gf1.name);
-    public static Comparator<Geofavorite> ByDistance = (gf0, gf1) -> 0; // (int) ((gf1.getDistanceFrom(userPosition) - gf0.getDistanceFrom(userPosition)) * 1000);
 
     public String getCoordinatesString() {
         return this.lat + " N, " + this.lng + " E";
@@ -232,6 +276,9 @@ public class Geofavorite implements Serializable {
         // If category is default, return null: will be used Nextcloud's accent
         if (category == null || category.equals(DEFAULT_CATEGORY) || category.length() == 0)
             return 0;
+        Integer cached = CATEGORY_COLORS.get(category);
+        if (cached != null)
+            return cached;
 
         float letter1Index = category.toLowerCase().charAt(0);
         float letter2Index = category.toLowerCase().charAt(1);
@@ -239,7 +286,9 @@ public class Geofavorite implements Serializable {
         float h = letterCoef * 360;
         float s = 75 + letterCoef * 10;
         float l = 50 + letterCoef * 10;
-        return Color.HSVToColor( new float[]{ Math.round(h), Math.round(s), Math.round(l) });
+        int color = Color.HSVToColor( new float[]{ Math.round(h), Math.round(s), Math.round(l) });
+        CATEGORY_COLORS.put(category, color);
+        return color;
     }
 
 }
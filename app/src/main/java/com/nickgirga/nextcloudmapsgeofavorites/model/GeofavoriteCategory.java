@@ -0,0 +1,71 @@
+package com.nickgirga.nextcloudmapsgeofavorites.model;
+
+import androidx.annotation.NonNull;
+
+/**
+ * Immutable summary of the geofavorites of a category
+ */
+public class GeofavoriteCategory {
+    private final String name;
+    private final int count;
+    private final long lastModified;
+    private final double minLat;
+    private final double minLng;
+    private final double maxLat;
+    private final double maxLng;
+
+    public GeofavoriteCategory(String name, int count, long lastModified,
+                               double minLat, double minLng, double maxLat, double maxLng) {
+        this.name = name;
+        this.count = count;
+        this.lastModified = lastModified;
+        this.minLat = minLat;
+        this.minLng = minLng;
+        this.maxLat = maxLat;
+        this.maxLng = maxLng;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the number of geofavorites in the category
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the most recent modification date of its geofavorites, in seconds
+     */
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /*
+     * Bounding box of its geofavorites
+     */
+
+    public double getMinLat() {
+        return minLat;
+    }
+
+    public double getMinLng() {
+        return minLng;
+    }
+
+    public double getMaxLat() {
+        return maxLat;
+    }
+
+    public double getMaxLng() {
+        return maxLng;
+    }
+
+    @NonNull
+    @Override
+    public String toString() {
+        return name + " (" + count + ")";
+    }
+}
@@ -0,0 +1,30 @@
+package com.nickgirga.nextcloudmapsgeofavorites.model;
+
+import androidx.annotation.Nullable;
+
+/**
+ * Fields of geofavorites by row, that can be read without creating Geofavorite objects:
+ * implemented by GeofavoriteSnapshot and by the storages it is loaded from (see GeofavoriteSnapshot.RowSource).
+ */
+public interface GeofavoriteColumns {
+    int size();
+
+    int getId(int row);
+
+    long getDateModified(int row);
+
+    long getDateCreated(int row);
+
+    double getLat(int row);
+
+    double getLng(int row);
+
+    @Nullable
+    String getName(int row);
+
+    @Nullable
+    String getCategory(int row);
+
+    @Nullable
+    String getComment(int row);
+}
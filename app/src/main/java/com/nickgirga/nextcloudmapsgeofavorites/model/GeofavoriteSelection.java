@@ -0,0 +1,126 @@
+package com.nickgirga.nextcloudmapsgeofavorites.model;
+
+import java.util.AbstractList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Immutable subset of a snapshot, in any order, stored as the positions (rows) of its geofavorites:
+ * filtered and sorted views are passed around without copying the geofavorites.
+ */
+public final class GeofavoriteSelection extends AbstractList<Geofavorite> implements RandomAccess {
+    public static final GeofavoriteSelection EMPTY = new GeofavoriteSelection(GeofavoriteSnapshot.EMPTY, new int[0]);
+
+    private final GeofavoriteSnapshot mSnapshot;
+    private final int[] mRows;
+    // Ordered by relevance to a search, see ranked()
+    private final boolean mRanked;
+
+    /**
+     * @param rows positions in the snapshot, not copied: must not be modified afterwards
+     */
+    public GeofavoriteSelection(GeofavoriteSnapshot snapshot, int[] rows) {
+        this(snapshot, rows, false);
+    }
+
+    private GeofavoriteSelection(GeofavoriteSnapshot snapshot, int[] rows, boolean ranked) {
+        this.mSnapshot = snapshot;
+        this.mRows = rows;
+        this.mRanked = ranked;
+    }
+
+    /**
+     * @param rows positions in the snapshot, best matches of a search first, not copied
+     * @return a selection whose order should be kept when shown (see isRanked())
+     */
+    public static GeofavoriteSelection ranked(GeofavoriteSnapshot snapshot, int[] rows) {
+        return new GeofavoriteSelection(snapshot, rows, true);
+    }
+
+    /**
+     * @return the rows set in the bitset, in ascending order
+     */
+    public static GeofavoriteSelection of(GeofavoriteSnapshot snapshot, BitSet rows) {
+        int[] selected = new int[rows.cardinality()];
+        int i = 0;
+        for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1))
+            selected[i++] = row;
+        return new GeofavoriteSelection(snapshot, selected);
+    }
+
+    public static GeofavoriteSelection all(GeofavoriteSnapshot snapshot) {
+        int[] rows = new int[snapshot.size()];
+        for (int row = 0; row < rows.length; row++)
+            rows[row] = row;
+        return new GeofavoriteSelection(snapshot, rows);
+    }
+
+    /**
+     * @return the list itself if it is a selection, otherwise a selection of the same geofavorites
+     */
+    public static GeofavoriteSelection of(List<Geofavorite> geofavs) {
+        if (geofavs instanceof GeofavoriteSelection)
+            return (GeofavoriteSelection) geofavs;
+        if (geofavs instanceof GeofavoriteSnapshot)
+            return all((GeofavoriteSnapshot) geofavs);
+
+        GeofavoriteSnapshot.Builder builder = new GeofavoriteSnapshot.Builder();
+        builder.setAll(geofavs);
+        return all(builder.build());
+    }
+
+    @Override
+    public Geofavorite get(int index) {
+        return mSnapshot.get(mRows[index]);
+    }
+
+    @Override
+    public int size() {
+        return mRows.length;
+    }
+
+    public GeofavoriteSnapshot getSnapshot() {
+        return mSnapshot;
+    }
+
+    /**
+     * @return true if the geofavorites are ordered by relevance to a search, the best first
+     */
+    public boolean isRanked() {
+        return mRanked;
+    }
+
+    /**
+     * @return the position in the snapshot of the element at the given index
+     */
+    public int getRow(int index) {
+        return mRows[index];
+    }
+
+    public BitSet getRows() {
+        BitSet rows = new BitSet(mSnapshot.size());
+        for (int row : mRows)
+            rows.set(row);
+        return rows;
+    }
+
+    /**
+     * @return the count geofavorites of this selection closest to the point, the closest first,
+     * found with the spatial index of the snapshot without sorting the whole selection
+     */
+    public GeofavoriteSelection nearest(double lat, double lng, int count) {
+        // Rows are distinct, so a selection as large as the snapshot contains all of them
+        BitSet within = mRows.length == mSnapshot.size() ? null : getRows();
+        return new GeofavoriteSelection(mSnapshot, mSnapshot.getSpatialIndex().nearest(lat, lng, count, within));
+    }
+
+    /**
+     * @return a copy sorted with the comparator, see GeofavoriteTable
+     */
+    public GeofavoriteSelection sorted(GeofavoriteTable.RowComparator comparator) {
+        int[] rows = mRows.clone();
+        GeofavoriteTable.sortRows(rows, rows.length, comparator);
+        return new GeofavoriteSelection(mSnapshot, rows);
+    }
+}
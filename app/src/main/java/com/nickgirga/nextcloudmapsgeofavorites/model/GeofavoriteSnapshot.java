@@ -0,0 +1,506 @@
+package com.nickgirga.nextcloudmapsgeofavorites.model;
+
+import androidx.annotation.Nullable;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.nickgirga.nextcloudmapsgeofavorites.utils.IntIntMap;
+
+/**
+ * Immutable, versioned view of the geofavorites dataset, safe to read from any thread without locking.
+ * Each snapshot carries the Change from the one built before it, so that consumers can update
+ * incrementally instead of reprocessing the whole list.
+ * Snapshots are produced by a Builder and share the unchanged parts of the storage: elements are
+ * kept in chunks of CHUNK_SIZE, and publishing a new version only copies the chunks modified since
+ * the previous one. The geofavorites themselves must not be modified either (see Geofavorite(Geofavorite)).
+ * A dataset can also be loaded from a RowSource, whose rows are materialized a chunk at a time on first access.
+ * Its columns (see GeofavoriteColumns) are read from the RowSource for the rows not materialized
+ * yet, so that indexes can be built without creating every geofavorite. Loading a GeofavoriteTable
+ * keeps the geofavorites of large datasets out of the heap until they are read.
+ */
+public final class GeofavoriteSnapshot extends AbstractList<Geofavorite>
+        implements RandomAccess, GeofavoriteColumns {
+    private static final int CHUNK_SHIFT = 6;
+    private static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int NO_POSITION = -1;
+    // Versions are unique across builders, e.g. the ones of different accounts
+    private static final AtomicLong sLastVersion = new AtomicLong(0);
+
+    public static final GeofavoriteSnapshot EMPTY = new GeofavoriteSnapshot(
+            new Geofavorite[0][], null, 0, new IntIntMap(0, NO_POSITION), 0, -1, Change.NONE);
+
+    private final Geofavorite[][] mChunks;
+    // Chunks not yet materialized are null in mChunks and loaded from here
+    @Nullable
+    private final LazyChunks mLazyChunks;
+    private final int mSize;
+    // id -> position, shared with the builder until it is modified
+    private final IntIntMap mPositions;
+    private final long mVersion;
+    private final long mParentVersion;
+    private final Change mChange;
+    // Built on first use. Racing threads may build it twice, which is harmless.
+    @Nullable
+    private volatile GeofavoriteTable mTable;
+    @Nullable
+    private volatile SpatialIndex mSpatialIndex;
+
+    private GeofavoriteSnapshot(Geofavorite[][] chunks, @Nullable LazyChunks lazyChunks, int size,
+                                IntIntMap positions, long version, long parentVersion, Change change) {
+        this.mChunks = chunks;
+        this.mLazyChunks = lazyChunks;
+        this.mSize = size;
+        this.mPositions = positions;
+        this.mVersion = version;
+        this.mParentVersion = parentVersion;
+        this.mChange = change;
+    }
+
+    @Override
+    public Geofavorite get(int index) {
+        if (index < 0 || index >= mSize)
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + mSize);
+        return chunk(mChunks, mLazyChunks, index >> CHUNK_SHIFT)[index & CHUNK_MASK];
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    /*
+     * Columns, rows being the positions in the snapshot
+     */
+
+    @Override
+    public int getId(int row) {
+        Geofavorite g = loaded(row);
+        return g != null ? g.getId() : mLazyChunks.mSource.getId(row);
+    }
+
+    @Override
+    public long getDateModified(int row) {
+        Geofavorite g = loaded(row);
+        return g != null ? g.getDateModified() : mLazyChunks.mSource.getDateModified(row);
+    }
+
+    @Override
+    public long getDateCreated(int row) {
+        Geofavorite g = loaded(row);
+        return g != null ? g.getDateCreated() : mLazyChunks.mSource.getDateCreated(row);
+    }
+
+    @Override
+    public double getLat(int row) {
+        Geofavorite g = loaded(row);
+        return g != null ? g.getLat() : mLazyChunks.mSource.getLat(row);
+    }
+
+    @Override
+    public double getLng(int row) {
+        Geofavorite g = loaded(row);
+        return g != null ? g.getLng() : mLazyChunks.mSource.getLng(row);
+    }
+
+    @Nullable
+    @Override
+    public String getName(int row) {
+        Geofavorite g = loaded(row);
+        return g != null ? g.getName() : mLazyChunks.mSource.getName(row);
+    }
+
+    @Nullable
+    @Override
+    public String getCategory(int row) {
+        Geofavorite g = loaded(row);
+        return g != null ? g.getCategory() : mLazyChunks.mSource.getCategory(row);
+    }
+
+    @Nullable
+    @Override
+    public String getComment(int row) {
+        Geofavorite g = loaded(row);
+        return g != null ? g.getComment() : mLazyChunks.mSource.getComment(row);
+    }
+
+    /**
+     * @return the geofavorite at the position if it is already materialized, otherwise null: the row
+     * is then unchanged since loading, at the same position in the RowSource
+     */
+    @Nullable
+    private Geofavorite loaded(int row) {
+        int chunk = row >> CHUNK_SHIFT;
+        Geofavorite[] geofavs = mChunks[chunk];
+        if (geofavs == null)
+            geofavs = mLazyChunks.peek(chunk);
+        return geofavs != null ? geofavs[row & CHUNK_MASK] : null;
+    }
+
+    /**
+     * @return the geofavorite with the given id, or null. Constant time.
+     */
+    @Nullable
+    public Geofavorite findById(int id) {
+        int position = mPositions.get(id);
+        return position == NO_POSITION ? null : get(position);
+    }
+
+    /**
+     * @return the position of the geofavorite with the given id, or -1. Constant time.
+     */
+    public int indexOfId(int id) {
+        return mPositions.get(id);
+    }
+
+    public long getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * @return the differences from the snapshot this one was built after
+     */
+    public Change getChange() {
+        return mChange;
+    }
+
+    /**
+     * @return the columns of this snapshot as primitive arrays, rows being the positions in the snapshot.
+     * The table the dataset has been loaded from while no row has been modified since.
+     */
+    public GeofavoriteTable getTable() {
+        GeofavoriteTable table = mTable;
+        if (table == null) {
+            table = isSource() ? (GeofavoriteTable) mLazyChunks.mSource : GeofavoriteTable.ofColumns(this);
+            mTable = table;
+        }
+        return table;
+    }
+
+    /**
+     * @return true if the rows are the ones of the table the dataset has been loaded from
+     */
+    private boolean isSource() {
+        if (mLazyChunks == null || !(mLazyChunks.mSource instanceof GeofavoriteTable) || mLazyChunks.mSource.size() != mSize)
+            return false;
+        // Chunks are only set here when modified, the ones materialized from the source are in mLazyChunks
+        for (Geofavorite[] chunk : mChunks) {
+            if (chunk != null)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the spatial index of this snapshot, rows being the positions in the snapshot.
+     * Built by the first spatial query, in background when possible (see GeofavoritesSearch.setPrepareSpatialIndex()).
+     */
+    public SpatialIndex getSpatialIndex() {
+        SpatialIndex index = mSpatialIndex;
+        if (index == null) {
+            index = SpatialIndex.of(getTable());
+            mSpatialIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * Observers can miss snapshots (e.g. LiveData.postValue() only delivers the latest one):
+     * getChange() can be applied incrementally only if this returns true, otherwise reload everything.
+     * @return true if this snapshot has been built right after the given one, and is not a reset
+     */
+    public boolean follows(@Nullable GeofavoriteSnapshot previous) {
+        return previous != null && previous.mVersion == mParentVersion && !mChange.reset;
+    }
+
+    private static Geofavorite[] chunk(Geofavorite[][] chunks, @Nullable LazyChunks lazyChunks, int chunk) {
+        Geofavorite[] geofavs = chunks[chunk];
+        return geofavs != null || lazyChunks == null ? geofavs : lazyChunks.get(chunk);
+    }
+
+    /**
+     * Storage from which a dataset can be loaded without creating all the geofavorites upfront
+     */
+    public interface RowSource extends GeofavoriteColumns {
+        /**
+         * Called at most once per row and dataset, possibly from any thread
+         */
+        Geofavorite materialize(int row);
+    }
+
+    /**
+     * Chunks materialized from a RowSource, shared by all the snapshots of the dataset loaded from it
+     */
+    private static final class LazyChunks {
+        private final RowSource mSource;
+        private final AtomicReferenceArray<Geofavorite[]> mChunks;
+
+        LazyChunks(RowSource source, int chunkCount) {
+            this.mSource = source;
+            this.mChunks = new AtomicReferenceArray<>(chunkCount);
+        }
+
+        /**
+         * @return the chunk if it is already materialized, otherwise null
+         */
+        @Nullable
+        Geofavorite[] peek(int chunk) {
+            return chunk < mChunks.length() ? mChunks.get(chunk) : null;
+        }
+
+        /**
+         * @return null for the chunks added after loading
+         */
+        @Nullable
+        Geofavorite[] get(int chunk) {
+            if (chunk >= mChunks.length())
+                return null;
+            Geofavorite[] geofavs = mChunks.get(chunk);
+            if (geofavs != null)
+                return geofavs;
+
+            synchronized (this) {
+                geofavs = mChunks.get(chunk);
+                if (geofavs == null) {
+                    geofavs = new Geofavorite[CHUNK_SIZE];
+                    int end = Math.min(mSource.size(), (chunk + 1) << CHUNK_SHIFT);
+                    for (int row = chunk << CHUNK_SHIFT; row < end; row++)
+                        geofavs[row & CHUNK_MASK] = mSource.materialize(row);
+                    mChunks.set(chunk, geofavs);
+                }
+                return geofavs;
+            }
+        }
+    }
+
+    /**
+     * Ids of the geofavorites added, removed and updated between two consecutive snapshots.
+     * If reset is true, the whole dataset has been replaced and the id lists are empty.
+     */
+    public static final class Change {
+        private static final int[] NO_IDS = new int[0];
+        public static final Change NONE = new Change(false, NO_IDS, NO_IDS, NO_IDS);
+        public static final Change RESET = new Change(true, NO_IDS, NO_IDS, NO_IDS);
+
+        public final boolean reset;
+        public final int[] added;
+        public final int[] removed;
+        public final int[] updated;
+
+        private Change(boolean reset, int[] added, int[] removed, int[] updated) {
+            this.reset = reset;
+            this.added = added;
+            this.removed = removed;
+            this.updated = updated;
+        }
+
+        public boolean isEmpty() {
+            return !reset && added.length == 0 && removed.length == 0 && updated.length == 0;
+        }
+    }
+
+    /**
+     * Mutable dataset keyed by id, from which snapshots are published. Not thread safe:
+     * it is meant to be owned by a single writer thread.
+     * Positions are not stable: removals move the last geofavorite in place of the removed one.
+     */
+    public static final class Builder {
+        private static final int ADDED = 1;
+        private static final int REMOVED = 2;
+        private static final int UPDATED = 3;
+
+        private Geofavorite[][] mChunks = new Geofavorite[0][];
+        @Nullable
+        private LazyChunks mLazyChunks = null;
+        private int mSize = 0;
+        private IntIntMap mPositions = new IntIntMap(256, NO_POSITION);
+        private long mLastBuiltVersion = -1;
+
+        // Copy on write: what is still shared with the last published snapshot
+        private boolean mOwnsChunkArray = true;
+        private boolean[] mOwnedChunks = new boolean[0];
+        private boolean mOwnsPositions = true;
+
+        // id -> ADDED/REMOVED/UPDATED since the last published snapshot
+        private final IntIntMap mChanges = new IntIntMap(16, 0);
+        private boolean mReset = false;
+
+        public int size() {
+            return mSize;
+        }
+
+        public Geofavorite getAt(int position) {
+            return chunk(mChunks, mLazyChunks, position >> CHUNK_SHIFT)[position & CHUNK_MASK];
+        }
+
+        @Nullable
+        public Geofavorite get(int id) {
+            int position = mPositions.get(id);
+            return position == NO_POSITION ? null : getAt(position);
+        }
+
+        public boolean contains(int id) {
+            return mPositions.containsKey(id);
+        }
+
+        /**
+         * Replaces the whole dataset: the next snapshot is published as a reset
+         */
+        public void setAll(List<Geofavorite> geofavs) {
+            mChunks = new Geofavorite[(geofavs.size() + CHUNK_MASK) >> CHUNK_SHIFT][];
+            mLazyChunks = null;
+            mOwnedChunks = new boolean[mChunks.length];
+            mOwnsChunkArray = true;
+            mPositions = new IntIntMap(geofavs.size(), NO_POSITION);
+            mOwnsPositions = true;
+            mSize = 0;
+            for (Geofavorite g : geofavs)
+                append(g);
+            mChanges.clear();
+            mReset = true;
+        }
+
+        /**
+         * Replaces the whole dataset with the rows of the source, that are materialized only when read.
+         * Only the ids are read upfront. The next snapshot is published as a reset.
+         */
+        public void setAll(RowSource source) {
+            int size = source.size();
+            mChunks = new Geofavorite[(size + CHUNK_MASK) >> CHUNK_SHIFT][];
+            mLazyChunks = new LazyChunks(source, mChunks.length);
+            mOwnedChunks = new boolean[mChunks.length];
+            mOwnsChunkArray = true;
+            mPositions = new IntIntMap(size, NO_POSITION);
+            mOwnsPositions = true;
+            for (int row = 0; row < size; row++)
+                mPositions.put(source.getId(row), row);
+            mSize = size;
+            mChanges.clear();
+            mReset = true;
+        }
+
+        /**
+         * Adds the geofavorite, or replaces the one having the same id
+         */
+        public void put(Geofavorite geofav) {
+            int position = mPositions.get(geofav.getId());
+            if (position != NO_POSITION) {
+                writableChunk(position >> CHUNK_SHIFT)[position & CHUNK_MASK] = geofav;
+                recordChange(geofav.getId(), UPDATED);
+            } else {
+                append(geofav);
+                recordChange(geofav.getId(), ADDED);
+            }
+        }
+
+        /**
+         * @return false if there was no geofavorite with such id
+         */
+        public boolean remove(int id) {
+            int position = mPositions.get(id);
+            if (position == NO_POSITION)
+                return false;
+
+            writablePositions().remove(id);
+            int last = mSize - 1;
+            Geofavorite moved = getAt(last);
+            writableChunk(last >> CHUNK_SHIFT)[last & CHUNK_MASK] = null;
+            mSize--;
+            if (position != last) {
+                writableChunk(position >> CHUNK_SHIFT)[position & CHUNK_MASK] = moved;
+                mPositions.put(moved.getId(), position);
+            }
+            recordChange(id, REMOVED);
+            return true;
+        }
+
+        public boolean hasChanges() {
+            return mReset || mChanges.size() > 0;
+        }
+
+        /**
+         * Publishes the current content. The builder keeps working on copies of whatever it modifies next.
+         */
+        public GeofavoriteSnapshot build() {
+            Change change = mReset ? Change.RESET : collectChanges();
+            long version = sLastVersion.incrementAndGet();
+            GeofavoriteSnapshot snapshot = new GeofavoriteSnapshot(mChunks, mLazyChunks, mSize, mPositions, version, mLastBuiltVersion, change);
+            mLastBuiltVersion = version;
+
+            mOwnsChunkArray = false;
+            Arrays.fill(mOwnedChunks, false);
+            mOwnsPositions = false;
+            mChanges.clear();
+            mReset = false;
+            return snapshot;
+        }
+
+        private void append(Geofavorite geofav) {
+            int chunk = mSize >> CHUNK_SHIFT;
+            if (chunk == mChunks.length) {
+                int capacity = Math.max(4, mChunks.length * 2);
+                mChunks = Arrays.copyOf(mChunks, capacity);
+                mOwnedChunks = Arrays.copyOf(mOwnedChunks, capacity);
+                mOwnsChunkArray = true;
+            }
+            writableChunk(chunk)[mSize & CHUNK_MASK] = geofav;
+            writablePositions().put(geofav.getId(), mSize);
+            mSize++;
+        }
+
+        private Geofavorite[] writableChunk(int chunk) {
+            if (!mOwnsChunkArray) {
+                mChunks = mChunks.clone();
+                mOwnsChunkArray = true;
+            }
+            if (!mOwnedChunks[chunk]) {
+                Geofavorite[] geofavs = chunk(mChunks, mLazyChunks, chunk);
+                mChunks[chunk] = geofavs == null ? new Geofavorite[CHUNK_SIZE] : geofavs.clone();
+                mOwnedChunks[chunk] = true;
+            }
+            return mChunks[chunk];
+        }
+
+        private IntIntMap writablePositions() {
+            if (!mOwnsPositions) {
+                mPositions = new IntIntMap(mPositions);
+                mOwnsPositions = true;
+            }
+            return mPositions;
+        }
+
+        /**
+         * Merges the change with the previous ones of the same geofavorite since the last snapshot
+         */
+        private void recordChange(int id, int change) {
+            if (mReset)
+                return;
+
+            int previous = mChanges.get(id);
+            if (change == REMOVED && previous == ADDED) {
+                mChanges.remove(id);
+            } else if (change == ADDED && previous == REMOVED) {
+                mChanges.put(id, UPDATED);
+            } else if (change != UPDATED || previous != ADDED) {
+                mChanges.put(id, change);
+            }
+        }
+
+        private Change collectChanges() {
+            if (mChanges.size() == 0)
+                return Change.NONE;
+
+            int[] counts = new int[4];
+            mChanges.forEach((id, change) -> counts[change]++);
+            int[][] ids = {null, new int[counts[ADDED]], new int[counts[REMOVED]], new int[counts[UPDATED]]};
+            int[] filled = new int[4];
+            mChanges.forEach((id, change) -> ids[change][filled[change]++] = id);
+            return new Change(false, ids[ADDED], ids[REMOVED], ids[UPDATED]);
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package com.nickgirga.nextcloudmapsgeofavorites.model;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Struct-of-arrays view of a dataset: the fields used by filtering, sorting and distance computations
+ * are stored in parallel primitive arrays indexed by row (the position in the dataset), and categories
+ * are interned to small integer ids. Code iterating over rows does not touch the Geofavorite objects,
+ * nor allocates per row. Strings are shared with the geofavorites, not copied.
+ * The table is also a RowSource: a dataset loaded from it (see GeofavoriteSnapshot.Builder.setAll())
+ * only keeps the table, about 50 bytes per row, and the geofavorites read from it. Its snapshots
+ * return the table itself until they are modified, instead of a copy of its columns.
+ * Immutable, see GeofavoriteSnapshot.getTable().
+ */
+public final class GeofavoriteTable implements GeofavoriteSnapshot.RowSource {
+    public static final int NO_CATEGORY = -1;
+    private static final double EARTH_RADIUS = 6371;
+
+    private final int mSize;
+    private final int[] mIds;
+    private final double[] mLats;
+    private final double[] mLngs;
+    private final long[] mDatesModified;
+    private final long[] mDatesCreated;
+    private final int[] mCategoryIds;
+    private final String[] mNames;
+    private final String[] mComments;
+    private final String[] mCategoryNames;
+    private final int[] mCategorySizes;
+    // Rows of each category: sorted array for sparse categories, or bitset for dense ones (the other is null)
+    private final int[][] mCategoryRowArrays;
+    private final BitSet[] mCategoryRowBitmaps;
+    private final HashMap<String, Integer> mCategoryIdsByName;
+
+    private GeofavoriteTable(int size, HashMap<String, Integer> categoryIdsByName, List<String> categoryNames) {
+        this.mSize = size;
+        this.mIds = new int[size];
+        this.mLats = new double[size];
+        this.mLngs = new double[size];
+        this.mDatesModified = new long[size];
+        this.mDatesCreated = new long[size];
+        this.mCategoryIds = new int[size];
+        this.mNames = new String[size];
+        this.mComments = new String[size];
+        this.mCategoryIdsByName = categoryIdsByName;
+        this.mCategoryNames = categoryNames.toArray(new String[0]);
+        this.mCategorySizes = new int[mCategoryNames.length];
+        this.mCategoryRowArrays = new int[mCategoryNames.length][];
+        this.mCategoryRowBitmaps = new BitSet[mCategoryNames.length];
+    }
+
+    public static GeofavoriteTable of(List<Geofavorite> geofavs) {
+        return ofColumns(geofavs instanceof GeofavoriteColumns ? (GeofavoriteColumns) geofavs : new ListColumns(geofavs));
+    }
+
+    /**
+     * Reads the columns without going through Geofavorite objects, e.g. from the file a snapshot is loaded from
+     */
+    public static GeofavoriteTable ofColumns(GeofavoriteColumns columns) {
+        int size = columns.size();
+        HashMap<String, Integer> categoryIdsByName = new HashMap<>();
+        List<String> categoryNames = new ArrayList<>();
+        int[] categoryIds = new int[size];
+        for (int row = 0; row < size; row++) {
+            String category = columns.getCategory(row);
+            if (category == null) {
+                categoryIds[row] = NO_CATEGORY;
+                continue;
+            }
+            Integer categoryId = categoryIdsByName.get(category);
+            if (categoryId == null) {
+                categoryId = categoryNames.size();
+                categoryIdsByName.put(category, categoryId);
+                categoryNames.add(category);
+            }
+            categoryIds[row] = categoryId;
+        }
+
+        GeofavoriteTable table = new GeofavoriteTable(size, categoryIdsByName, categoryNames);
+        System.arraycopy(categoryIds, 0, table.mCategoryIds, 0, size);
+        for (int categoryId : categoryIds) {
+            if (categoryId != NO_CATEGORY)
+                table.mCategorySizes[categoryId]++;
+        }
+        table.indexCategoryRows();
+        for (int row = 0; row < size; row++) {
+            table.mIds[row] = columns.getId(row);
+            table.mLats[row] = columns.getLat(row);
+            table.mLngs[row] = columns.getLng(row);
+            table.mDatesModified[row] = columns.getDateModified(row);
+            table.mDatesCreated[row] = columns.getDateCreated(row);
+            table.mNames[row] = columns.getName(row);
+            table.mComments[row] = columns.getComment(row);
+        }
+        return table;
+    }
+
+    @Override
+    public int size() {
+        return mSize;
+    }
+
+    @Override
+    public int getId(int row) {
+        return mIds[row];
+    }
+
+    @Override
+    public double getLat(int row) {
+        return mLats[row];
+    }
+
+    @Override
+    public double getLng(int row) {
+        return mLngs[row];
+    }
+
+    @Override
+    public long getDateModified(int row) {
+        return mDatesModified[row];
+    }
+
+    @Override
+    public long getDateCreated(int row) {
+        return mDatesCreated[row];
+    }
+
+    @Nullable
+    @Override
+    public String getName(int row) {
+        return mNames[row];
+    }
+
+    @Nullable
+    @Override
+    public String getCategory(int row) {
+        return mCategoryIds[row] == NO_CATEGORY ? null : mCategoryNames[mCategoryIds[row]];
+    }
+
+    @Nullable
+    @Override
+    public String getComment(int row) {
+        return mComments[row];
+    }
+
+    @Override
+    public Geofavorite materialize(int row) {
+        Geofavorite g = new Geofavorite();
+        g.setId(mIds[row]);
+        if (mNames[row] != null)
+            g.setName(mNames[row]);
+        g.setDateModified(mDatesModified[row]);
+        g.setDateCreated(mDatesCreated[row]);
+        g.setLat(mLats[row]);
+        g.setLng(mLngs[row]);
+        g.setCategory(getCategory(row));
+        g.setComment(mComments[row]);
+        return g;
+    }
+
+    /**
+     * @return the id of the category of the row, or NO_CATEGORY
+     */
+    public int getCategoryId(int row) {
+        return mCategoryIds[row];
+    }
+
+    public int getCategoryCount() {
+        return mCategoryNames.length;
+    }
+
+    public String getCategoryName(int categoryId) {
+        return mCategoryNames[categoryId];
+    }
+
+    /**
+     * @return the number of rows of the category
+     */
+    public int getCategorySize(int categoryId) {
+        return mCategorySizes[categoryId];
+    }
+
+    /**
+     * Adds the rows of the category to the bitset: filtering by several categories is a union of their rows
+     */
+    public void addCategoryRows(int categoryId, BitSet rows) {
+        if (mCategoryRowBitmaps[categoryId] != null) {
+            rows.or(mCategoryRowBitmaps[categoryId]);
+        } else {
+            for (int row : mCategoryRowArrays[categoryId])
+                rows.set(row);
+        }
+    }
+
+    /**
+     * @return the id of the category, or NO_CATEGORY if no row belongs to it
+     */
+    public int findCategoryId(@Nullable String category) {
+        Integer categoryId = category != null ? mCategoryIdsByName.get(category) : null;
+        return categoryId != null ? categoryId : NO_CATEGORY;
+    }
+
+    /**
+     * @return the distance of the row from the given point, in kilometers (same formula as
+     * Geofavorite.getDistanceFrom())
+     */
+    public double distanceFrom(int row, double lat, double lng) {
+        double latRad = lat * Math.PI / 180;
+        double rowLatRad = mLats[row] * Math.PI / 180;
+        double sinLat = Math.sin((rowLatRad - latRad) / 2);
+        double sinLng = Math.sin((mLngs[row] - lng) * Math.PI / 180 / 2);
+        double a = sinLat * sinLat + Math.cos(latRad) * Math.cos(rowLatRad) * sinLng * sinLng;
+        return EARTH_RADIUS * 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
+    }
+
+    /**
+     * Computes the distance of every row from the given point, see distanceFrom()
+     * @param distances output array, of at least size() elements
+     */
+    public void distancesFrom(double lat, double lng, double[] distances) {
+        for (int row = 0; row < mSize; row++)
+            distances[row] = distanceFrom(row, lat, lng);
+    }
+
+    private void indexCategoryRows() {
+        int[] counts = new int[mCategoryNames.length];
+        for (int categoryId = 0; categoryId < mCategoryNames.length; categoryId++)
+            mCategoryRowArrays[categoryId] = new int[mCategorySizes[categoryId]];
+        for (int row = 0; row < mSize; row++) {
+            int categoryId = mCategoryIds[row];
+            if (categoryId != NO_CATEGORY)
+                mCategoryRowArrays[categoryId][counts[categoryId]++] = row;
+        }
+        // A bitset takes less memory than the array above one row out of 32
+        for (int categoryId = 0; categoryId < mCategoryNames.length; categoryId++) {
+            if (mCategorySizes[categoryId] * 32L > mSize) {
+                BitSet bitmap = new BitSet(mSize);
+                for (int row : mCategoryRowArrays[categoryId])
+                    bitmap.set(row);
+                mCategoryRowBitmaps[categoryId] = bitmap;
+                mCategoryRowArrays[categoryId] = null;
+            }
+        }
+    }
+
+    /*
+     * Row sorting, without boxing. The sort is stable, like Collections.sort().
+     */
+
+    public interface RowComparator {
+        int compare(int row0, int row1);
+    }
+
+    public RowComparator byTitle() {
+        return (r0, r1) -> compareNullable(mNames[r0], mNames[r1]);
+    }
+
+    public RowComparator byLastCreated() {
+        return (r0, r1) -> Long.compare(mDatesCreated[r1], mDatesCreated[r0]);
+    }
+
+    public RowComparator byCategory() {
+        return (r0, r1) -> {
+            int c = mCategoryIds[r0] == mCategoryIds[r1] ? 0 : compareNullable(
+                    mCategoryIds[r0] == NO_CATEGORY ? null : mCategoryNames[mCategoryIds[r0]],
+                    mCategoryIds[r1] == NO_CATEGORY ? null : mCategoryNames[mCategoryIds[r1]]);
+            return c != 0 ? c : compareNullable(mNames[r0], mNames[r1]);
+        };
+    }
+
+    public RowComparator byLat() {
+        return (r0, r1) -> Double.compare(mLats[r0], mLats[r1]);
+    }
+
+    public RowComparator byLng() {
+        return (r0, r1) -> Double.compare(mLngs[r0], mLngs[r1]);
+    }
+
+    /**
+     * @param distances as computed by distancesFrom()
+     */
+    public static RowComparator byDistance(double[] distances) {
+        return (r0, r1) -> Double.compare(distances[r0], distances[r1]);
+    }
+
+    /**
+     * Sorts the first count rows of the array
+     */
+    public static void sortRows(int[] rows, int count, RowComparator comparator) {
+        int[] buffer = new int[count];
+        mergeSort(rows, buffer, 0, count, comparator);
+    }
+
+    private static void mergeSort(int[] rows, int[] buffer, int from, int to, RowComparator comparator) {
+        if (to - from < 16) {
+            // Insertion sort for short runs
+            for (int i = from + 1; i < to; i++) {
+                int row = rows[i];
+                int j = i - 1;
+                while (j >= from && comparator.compare(rows[j], row) > 0) {
+                    rows[j + 1] = rows[j];
+                    j--;
+                }
+                rows[j + 1] = row;
+            }
+            return;
+        }
+
+        int middle = (from + to) >>> 1;
+        mergeSort(rows, buffer, from, middle, comparator);
+        mergeSort(rows, buffer, middle, to, comparator);
+        if (comparator.compare(rows[middle - 1], rows[middle]) <= 0)
+            return;
+
+        System.arraycopy(rows, from, buffer, from, to - from);
+        int left = from, right = middle, out = from;
+        while (left < middle && right < to)
+            rows[out++] = comparator.compare(buffer[right], buffer[left]) < 0 ? buffer[right++] : buffer[left++];
+        while (left < middle)
+            rows[out++] = buffer[left++];
+        while (right < to)
+            rows[out++] = buffer[right++];
+    }
+
+    private static int compareNullable(@Nullable String s0, @Nullable String s1) {
+        if (s0 == null)
+            return s1 == null ? 0 : -1;
+        return s1 == null ? 1 : s0.compareTo(s1);
+    }
+
+    /**
+     * Columns of a list of geofavorites that is not a snapshot
+     */
+    private static final class ListColumns implements GeofavoriteColumns {
+        private final List<Geofavorite> mGeofavs;
+
+        ListColumns(List<Geofavorite> geofavs) {
+            this.mGeofavs = geofavs;
+        }
+
+        @Override
+        public int size() {
+            return mGeofavs.size();
+        }
+
+        @Override
+        public int getId(int row) {
+            return mGeofavs.get(row).getId();
+        }
+
+        @Override
+        public long getDateModified(int row) {
+            return mGeofavs.get(row).getDateModified();
+        }
+
+        @Override
+        public long getDateCreated(int row) {
+            return mGeofavs.get(row).getDateCreated();
+        }
+
+        @Override
+        public double getLat(int row) {
+            return mGeofavs.get(row).getLat();
+        }
+
+        @Override
+        public double getLng(int row) {
+            return mGeofavs.get(row).getLng();
+        }
+
+        @Nullable
+        @Override
+        public String getName(int row) {
+            return mGeofavs.get(row).getName();
+        }
+
+        @Nullable
+        @Override
+        public String getCategory(int row) {
+            return mGeofavs.get(row).getCategory();
+        }
+
+        @Nullable
+        @Override
+        public String getComment(int row) {
+            return mGeofavs.get(row).getComment();
+        }
+    }
+}
@@ -0,0 +1,263 @@
+package com.nickgirga.nextcloudmapsgeofavorites.model;
+
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.PriorityQueue;
+
+/**
+ * Packed R-tree over the coordinates of a GeofavoriteTable, for bounding box, radius and nearest
+ * neighbor queries that only visit the nodes close to the queried area.
+ * Built at once with the Sort-Tile-Recursive method: rows are sorted by longitude into vertical slices,
+ * each slice sorted by latitude, and packed NODE_SIZE at a time into leaves, then leaves into parent
+ * nodes up to the root. Nodes are stored level by level in flat arrays.
+ * Immutable, see GeofavoriteSnapshot.getSpatialIndex().
+ */
+public final class SpatialIndex {
+    private static final int NODE_SIZE = 16;
+    // Same as GeofavoriteTable, in kilometers
+    private static final double EARTH_RADIUS = 6371;
+    // Against rounding errors when pruning nodes, in kilometers
+    private static final double DISTANCE_MARGIN = 1e-6;
+
+    private final GeofavoriteTable mTable;
+    // Rows in tree order: leaf i holds the entries NODE_SIZE * i to NODE_SIZE * (i + 1)
+    private final int[] mRows;
+    // minLat, minLng, maxLat, maxLng of each node, leaves first and root last
+    private final double[] mBoxes;
+    // Index of the first node of each level, plus the total node count
+    private final int[] mLevelStarts;
+
+    private SpatialIndex(GeofavoriteTable table, int[] rows, double[] boxes, int[] levelStarts) {
+        this.mTable = table;
+        this.mRows = rows;
+        this.mBoxes = boxes;
+        this.mLevelStarts = levelStarts;
+    }
+
+    public static SpatialIndex of(GeofavoriteTable table) {
+        int size = table.size();
+        int[] rows = new int[size];
+        for (int row = 0; row < size; row++)
+            rows[row] = row;
+
+        // Sort-Tile-Recursive ordering of the rows
+        GeofavoriteTable.sortRows(rows, size, table.byLng());
+        int leafCount = (size + NODE_SIZE - 1) / NODE_SIZE;
+        int sliceSize = (int) Math.ceil(Math.sqrt(leafCount)) * NODE_SIZE;
+        int[] slice = new int[Math.min(sliceSize, size)];
+        for (int from = 0; from < size; from += sliceSize) {
+            int count = Math.min(sliceSize, size - from);
+            System.arraycopy(rows, from, slice, 0, count);
+            GeofavoriteTable.sortRows(slice, count, table.byLat());
+            System.arraycopy(slice, 0, rows, from, count);
+        }
+
+        int levels = 0;
+        int nodeCount = 0;
+        for (int count = leafCount; count > 0; count = count > 1 ? (count + NODE_SIZE - 1) / NODE_SIZE : 0) {
+            levels++;
+            nodeCount += count;
+        }
+        int[] levelStarts = new int[levels + 1];
+        double[] boxes = new double[nodeCount * 4];
+        if (levels == 0)
+            return new SpatialIndex(table, rows, boxes, levelStarts);
+
+        for (int leaf = 0; leaf < leafCount; leaf++) {
+            int b = leaf * 4;
+            boxes[b] = boxes[b + 1] = Double.POSITIVE_INFINITY;
+            boxes[b + 2] = boxes[b + 3] = Double.NEGATIVE_INFINITY;
+            for (int i = leaf * NODE_SIZE; i < Math.min((leaf + 1) * NODE_SIZE, size); i++) {
+                double lat = table.getLat(rows[i]), lng = table.getLng(rows[i]);
+                boxes[b] = Math.min(boxes[b], lat);
+                boxes[b + 1] = Math.min(boxes[b + 1], lng);
+                boxes[b + 2] = Math.max(boxes[b + 2], lat);
+                boxes[b + 3] = Math.max(boxes[b + 3], lng);
+            }
+        }
+        levelStarts[1] = leafCount;
+        for (int level = 1; level < levels; level++) {
+            int childStart = levelStarts[level - 1], childEnd = levelStarts[level];
+            int count = (childEnd - childStart + NODE_SIZE - 1) / NODE_SIZE;
+            for (int i = 0; i < count; i++) {
+                int b = (childEnd + i) * 4;
+                boxes[b] = boxes[b + 1] = Double.POSITIVE_INFINITY;
+                boxes[b + 2] = boxes[b + 3] = Double.NEGATIVE_INFINITY;
+                for (int child = childStart + i * NODE_SIZE; child < Math.min(childStart + (i + 1) * NODE_SIZE, childEnd); child++) {
+                    int c = child * 4;
+                    boxes[b] = Math.min(boxes[b], boxes[c]);
+                    boxes[b + 1] = Math.min(boxes[b + 1], boxes[c + 1]);
+                    boxes[b + 2] = Math.max(boxes[b + 2], boxes[c + 2]);
+                    boxes[b + 3] = Math.max(boxes[b + 3], boxes[c + 3]);
+                }
+            }
+            levelStarts[level + 1] = childEnd + count;
+        }
+        return new SpatialIndex(table, rows, boxes, levelStarts);
+    }
+
+    public GeofavoriteTable getTable() {
+        return mTable;
+    }
+
+    /**
+     * Adds the rows inside the bounding box (bounds included) to the bitset
+     * @param minLng greater than maxLng for a box crossing the antimeridian
+     */
+    public void addRowsInBox(double minLat, double minLng, double maxLat, double maxLng, BitSet rows) {
+        if (minLng > maxLng) {
+            addRowsInBox(minLat, minLng, maxLat, Double.POSITIVE_INFINITY, rows);
+            addRowsInBox(minLat, Double.NEGATIVE_INFINITY, maxLat, maxLng, rows);
+            return;
+        }
+        int levels = mLevelStarts.length - 1;
+        if (levels == 0)
+            return;
+
+        // Pending nodes, as (level, node) pairs
+        int[] stack = new int[2 * NODE_SIZE * levels];
+        int top = 0;
+        stack[top++] = levels - 1;
+        stack[top++] = mLevelStarts[levels - 1];
+        while (top > 0) {
+            int node = stack[--top];
+            int level = stack[--top];
+            int b = node * 4;
+            if (mBoxes[b] > maxLat || mBoxes[b + 2] < minLat || mBoxes[b + 1] > maxLng || mBoxes[b + 3] < minLng)
+                continue;
+            int first = (node - mLevelStarts[level]) * NODE_SIZE;
+            if (level == 0) {
+                for (int i = first; i < Math.min(first + NODE_SIZE, mRows.length); i++) {
+                    int row = mRows[i];
+                    double lat = mTable.getLat(row), lng = mTable.getLng(row);
+                    if (lat >= minLat && lat <= maxLat && lng >= minLng && lng <= maxLng)
+                        rows.set(row);
+                }
+            } else {
+                int childStart = mLevelStarts[level - 1];
+                for (int child = childStart + first; child < Math.min(childStart + first + NODE_SIZE, mLevelStarts[level]); child++) {
+                    stack[top++] = level - 1;
+                    stack[top++] = child;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the rows within the given distance of the point (see GeofavoriteTable.distanceFrom()) to the bitset
+     */
+    public void addRowsInRadius(double lat, double lng, double radiusKm, BitSet rows) {
+        int levels = mLevelStarts.length - 1;
+        if (levels == 0)
+            return;
+
+        int[] stack = new int[2 * NODE_SIZE * levels];
+        int top = 0;
+        stack[top++] = levels - 1;
+        stack[top++] = mLevelStarts[levels - 1];
+        while (top > 0) {
+            int node = stack[--top];
+            int level = stack[--top];
+            if (minDistance(node, lat, lng) > radiusKm)
+                continue;
+            int first = (node - mLevelStarts[level]) * NODE_SIZE;
+            if (level == 0) {
+                for (int i = first; i < Math.min(first + NODE_SIZE, mRows.length); i++) {
+                    if (mTable.distanceFrom(mRows[i], lat, lng) <= radiusKm)
+                        rows.set(mRows[i]);
+                }
+            } else {
+                int childStart = mLevelStarts[level - 1];
+                for (int child = childStart + first; child < Math.min(childStart + first + NODE_SIZE, mLevelStarts[level]); child++) {
+                    stack[top++] = level - 1;
+                    stack[top++] = child;
+                }
+            }
+        }
+    }
+
+    /**
+     * Best-first search: nodes are visited by increasing lower bound of their distance from the point,
+     * and the search stops once count rows closer than any pending node are found.
+     * @param within rows the results are restricted to, or null for all of them
+     * @return at most count rows, the closest to the point first
+     */
+    public int[] nearest(double lat, double lng, int count, @Nullable BitSet within) {
+        int levels = mLevelStarts.length - 1;
+        if (levels == 0 || count <= 0)
+            return new int[0];
+
+        PriorityQueue<Item> pending = new PriorityQueue<>();
+        pending.add(new Item(levels - 1, mLevelStarts[levels - 1], 0));
+        int[] nearest = new int[Math.min(count, mRows.length)];
+        int found = 0;
+        while (!pending.isEmpty() && found < nearest.length) {
+            Item item = pending.poll();
+            if (item.level < 0) {
+                nearest[found++] = item.index;
+                continue;
+            }
+            int first = (item.index - mLevelStarts[item.level]) * NODE_SIZE;
+            if (item.level == 0) {
+                for (int i = first; i < Math.min(first + NODE_SIZE, mRows.length); i++) {
+                    int row = mRows[i];
+                    if (within == null || within.get(row))
+                        pending.add(new Item(-1, row, mTable.distanceFrom(row, lat, lng)));
+                }
+            } else {
+                int childStart = mLevelStarts[item.level - 1];
+                for (int child = childStart + first; child < Math.min(childStart + first + NODE_SIZE, mLevelStarts[item.level]); child++)
+                    pending.add(new Item(item.level - 1, child, minDistance(child, lat, lng)));
+            }
+        }
+        return found == nearest.length ? nearest : Arrays.copyOf(nearest, found);
+    }
+
+    /**
+     * @return a lower bound of the distance from the point to any point of the node box, in kilometers:
+     * the greatest of the latitude difference and of the distance to the closest meridian of the box
+     */
+    private double minDistance(int node, double lat, double lng) {
+        int b = node * 4;
+        double latGap = lat < mBoxes[b] ? mBoxes[b] - lat : lat > mBoxes[b + 2] ? lat - mBoxes[b + 2] : 0;
+        double bound = Math.toRadians(latGap);
+        if (lng < mBoxes[b + 1] || lng > mBoxes[b + 3]) {
+            double lngGap = Math.min(longitudeDistance(lng, mBoxes[b + 1]), longitudeDistance(lng, mBoxes[b + 3]));
+            // Beyond 90 degrees of longitude, the closest point can be the pole
+            double lngBound = lngGap >= 90 ? Math.PI / 2 - Math.abs(Math.toRadians(lat))
+                    : Math.asin(Math.cos(Math.toRadians(lat)) * Math.sin(Math.toRadians(lngGap)));
+            bound = Math.max(bound, lngBound);
+        }
+        return bound * EARTH_RADIUS - DISTANCE_MARGIN;
+    }
+
+    /**
+     * @return the difference between the longitudes, across the antimeridian if shorter, from 0 to 180
+     */
+    private static double longitudeDistance(double lng0, double lng1) {
+        double distance = Math.abs(lng0 - lng1) % 360;
+        return Math.min(distance, 360 - distance);
+    }
+
+    /**
+     * Node (level >= 0) or row (level -1) pending in the nearest neighbor search
+     */
+    private static class Item implements Comparable<Item> {
+        final int level;
+        final int index;
+        final double distance;
+
+        Item(int level, int index, double distance) {
+            this.level = level;
+            this.index = index;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(Item other) {
+            return Double.compare(distance, other.distance);
+        }
+    }
+}
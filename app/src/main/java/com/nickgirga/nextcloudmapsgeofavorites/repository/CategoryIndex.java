@@ -0,0 +1,140 @@
+package com.nickgirga.nextcloudmapsgeofavorites.repository;
+
+import androidx.annotation.Nullable;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteCategory;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteSnapshot;
+
+/**
+ * Reference counted index of the categories, kept up to date from the changes between
+ * consecutive snapshots. Each category keeps its modification dates and coordinates in sorted
+ * multisets, so that the last modification date and the bounding box stay exact when a geofavorite
+ * on their boundary is removed: each added, removed or updated geofavorite costs O(log k), k being
+ * the size of its category.
+ * Not thread safe: used from the repository disk executor only.
+ */
+class CategoryIndex {
+    private final HashMap<String, Entry> mEntries = new HashMap<>();
+    private Map<String, GeofavoriteCategory> mPublished = Collections.emptyMap();
+    private boolean mChanged = false;
+
+    /**
+     * Applies the differences between the two snapshots, or rebuilds the index if they are not consecutive
+     */
+    void apply(GeofavoriteSnapshot previous, GeofavoriteSnapshot current) {
+        if (!current.follows(previous)) {
+            mEntries.clear();
+            // Read from the columns, not to materialize the geofavorites of a snapshot loaded from a file
+            for (int row = 0; row < current.size(); row++)
+                add(current.getCategory(row), current.getDateModified(row), current.getLat(row), current.getLng(row));
+            mChanged = true;
+            return;
+        }
+
+        GeofavoriteSnapshot.Change change = current.getChange();
+        for (int id : change.removed)
+            remove(previous.findById(id));
+        for (int id : change.updated) {
+            remove(previous.findById(id));
+            add(current.findById(id));
+        }
+        for (int id : change.added)
+            add(current.findById(id));
+    }
+
+    boolean hasChanges() {
+        return mChanged;
+    }
+
+    /**
+     * @return an immutable name -> category map. Unchanged categories are shared with the previous one.
+     */
+    Map<String, GeofavoriteCategory> publish() {
+        if (!mChanged)
+            return mPublished;
+
+        HashMap<String, GeofavoriteCategory> categories = new HashMap<>();
+        for (Map.Entry<String, Entry> e : mEntries.entrySet()) {
+            Entry entry = e.getValue();
+            if (entry.published == null)
+                entry.published = new GeofavoriteCategory(e.getKey(), entry.count,
+                        entry.dates.lastKey(), entry.lats.firstKey(), entry.lngs.firstKey(),
+                        entry.lats.lastKey(), entry.lngs.lastKey());
+            categories.put(e.getKey(), entry.published);
+        }
+        mPublished = Collections.unmodifiableMap(categories);
+        mChanged = false;
+        return mPublished;
+    }
+
+    private void add(@Nullable Geofavorite g) {
+        if (g != null)
+            add(g.getCategory(), g.getDateModified(), g.getLat(), g.getLng());
+    }
+
+    private void add(@Nullable String category, long dateModified, double lat, double lng) {
+        if (category == null)
+            return;
+
+        Entry entry = mEntries.get(category);
+        if (entry == null) {
+            entry = new Entry();
+            mEntries.put(category, entry);
+        }
+        entry.count++;
+        increment(entry.dates, dateModified);
+        increment(entry.lats, lat);
+        increment(entry.lngs, lng);
+        entry.published = null;
+        mChanged = true;
+    }
+
+    private void remove(@Nullable Geofavorite g) {
+        if (g == null || g.getCategory() == null)
+            return;
+
+        Entry entry = mEntries.get(g.getCategory());
+        if (entry == null)
+            return;
+
+        if (--entry.count == 0) {
+            mEntries.remove(g.getCategory());
+        } else {
+            decrement(entry.dates, g.getDateModified());
+            decrement(entry.lats, g.getLat());
+            decrement(entry.lngs, g.getLng());
+        }
+        entry.published = null;
+        mChanged = true;
+    }
+
+    private static <K> void increment(TreeMap<K, Integer> multiset, K key) {
+        Integer count = multiset.get(key);
+        multiset.put(key, count == null ? 1 : count + 1);
+    }
+
+    private static <K> void decrement(TreeMap<K, Integer> multiset, K key) {
+        Integer count = multiset.get(key);
+        if (count == null)
+            return;
+        if (count == 1)
+            multiset.remove(key);
+        else
+            multiset.put(key, count - 1);
+    }
+
+    private static class Entry {
+        int count = 0;
+        // Value -> number of geofavorites of the category with that value
+        final TreeMap<Long, Integer> dates = new TreeMap<>();
+        final TreeMap<Double, Integer> lats = new TreeMap<>();
+        final TreeMap<Double, Integer> lngs = new TreeMap<>();
+        GeofavoriteCategory published;
+    }
+}
@@ -0,0 +1,518 @@
+package com.nickgirga.nextcloudmapsgeofavorites.repository;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import androidx.annotation.Nullable;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+import com.nickgirga.nextcloudmapsgeofavorites.utils.SearchKey;
+
+/**
+ * Local copy of the geofavorites, used to show data before the server answers
+ * and to survive process death, plus the outbox of local changes not yet sent to the server.
+ * All methods perform disk I/O and must not be called on the main thread.
+ */
+public class GeofavoriteDatabase extends SQLiteOpenHelper {
+    private static final String DATABASE_NAME_PREFIX = "geofavorites_";
+    private static final int DATABASE_VERSION = 5;
+
+    /** Highest date_modified received from the server, used for delta syncs */
+    public static final String SYNC_HIGH_WATER_MARK = "high_water_mark";
+    /** Time (in ms) of the last complete download of the favorites */
+    public static final String SYNC_LAST_FULL_SYNC = "last_full_sync";
+    /** Last temporary id assigned to a geofavorite created offline (as a positive number) */
+    public static final String SYNC_LAST_LOCAL_ID = "last_local_id";
+    /** Incremented at each change of the favorites table, to validate copies of it (see GeofavoriteSnapshotFile) */
+    public static final String SYNC_DATA_VERSION = "data_version";
+
+    public static final int OUTBOX_CREATE = 0;
+    public static final int OUTBOX_UPDATE = 1;
+    public static final int OUTBOX_DELETE = 2;
+
+    private static final String TABLE_FAVORITES = "favorites";
+    private static final String COLUMN_ID = "id";
+    private static final String COLUMN_NAME = "name";
+    private static final String COLUMN_DATE_MODIFIED = "date_modified";
+    private static final String COLUMN_DATE_CREATED = "date_created";
+    private static final String COLUMN_LAT = "lat";
+    private static final String COLUMN_LNG = "lng";
+    private static final String COLUMN_CATEGORY = "category";
+    private static final String COLUMN_COMMENT = "comment";
+
+    // Full text index of the favorites names and comments, rowid (docid) being the favorite id
+    private static final String TABLE_FAVORITES_SEARCH = "favorites_search";
+
+    private static final String TABLE_SYNC_STATE = "sync_state";
+    private static final String COLUMN_KEY = "key";
+    private static final String COLUMN_VALUE = "value";
+
+    private static final String TABLE_OUTBOX = "outbox";
+    private static final String COLUMN_SEQ = "seq";
+    private static final String COLUMN_FAVORITE_ID = "favorite_id";
+    private static final String COLUMN_OPERATION = "operation";
+    private static final String COLUMN_PAYLOAD = "payload";
+    private static final String COLUMN_ATTEMPTS = "attempts";
+    private static final String COLUMN_NEXT_ATTEMPT = "next_attempt";
+    private static final String COLUMN_SENT_AT = "sent_at";
+
+    private static final String[] OUTBOX_COLUMNS = {
+            COLUMN_SEQ, COLUMN_FAVORITE_ID, COLUMN_OPERATION, COLUMN_PAYLOAD, COLUMN_ATTEMPTS, COLUMN_NEXT_ATTEMPT,
+            COLUMN_SENT_AT
+    };
+
+    private static final Gson GSON = new GsonBuilder().create();
+
+    private static final String[] FAVORITES_COLUMNS = {
+            COLUMN_ID, COLUMN_NAME, COLUMN_DATE_MODIFIED, COLUMN_DATE_CREATED,
+            COLUMN_LAT, COLUMN_LNG, COLUMN_CATEGORY, COLUMN_COMMENT
+    };
+
+    private static final String SQL_UPSERT_FAVORITE =
+            "INSERT OR REPLACE INTO " + TABLE_FAVORITES + " (" + String.join(",", FAVORITES_COLUMNS) + ")"
+            + " VALUES (?,?,?,?,?,?,?,?)";
+
+    private static final String SQL_DELETE_SEARCH_ENTRY =
+            "DELETE FROM " + TABLE_FAVORITES_SEARCH + " WHERE docid = ?";
+
+    private static final String SQL_INSERT_SEARCH_ENTRY =
+            "INSERT INTO " + TABLE_FAVORITES_SEARCH + " (docid," + COLUMN_NAME + "," + COLUMN_COMMENT + ") VALUES (?,?,?)";
+
+    // BM25 parameters, and weight of each column of the search table
+    private static final double BM25_K1 = 1.2;
+    private static final double BM25_B = 0.75;
+    private static final double[] SEARCH_COLUMN_WEIGHTS = {2.0, 1.0};
+
+    private static final String SQL_BUMP_DATA_VERSION =
+            "INSERT OR REPLACE INTO " + TABLE_SYNC_STATE + " (" + COLUMN_KEY + "," + COLUMN_VALUE + ")"
+            + " VALUES ('" + SYNC_DATA_VERSION + "', COALESCE((SELECT " + COLUMN_VALUE + " FROM " + TABLE_SYNC_STATE
+            + " WHERE " + COLUMN_KEY + " = '" + SYNC_DATA_VERSION + "'), 0) + 1)";
+
+    /**
+     * @param accountName the Nextcloud account the data belongs to: each account has its own database
+     */
+    public GeofavoriteDatabase(Context context, @Nullable String accountName) {
+        super(context, databaseName(accountName), null, DATABASE_VERSION);
+    }
+
+    /**
+     * Account names contain characters not allowed in file names: use a stable hash of them instead
+     */
+    public static String databaseName(@Nullable String accountName) {
+        String key = accountName != null ? accountName : "";
+        return DATABASE_NAME_PREFIX + UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)) + ".db";
+    }
+
+    @Override
+    public void onCreate(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + TABLE_FAVORITES + " ("
+                + COLUMN_ID + " INTEGER PRIMARY KEY,"
+                + COLUMN_NAME + " TEXT,"
+                + COLUMN_DATE_MODIFIED + " INTEGER NOT NULL,"
+                + COLUMN_DATE_CREATED + " INTEGER NOT NULL,"
+                + COLUMN_LAT + " REAL NOT NULL,"
+                + COLUMN_LNG + " REAL NOT NULL,"
+                + COLUMN_CATEGORY + " TEXT,"
+                + COLUMN_COMMENT + " TEXT)");
+        db.execSQL("CREATE TABLE " + TABLE_SYNC_STATE + " ("
+                + COLUMN_KEY + " TEXT PRIMARY KEY,"
+                + COLUMN_VALUE + " INTEGER NOT NULL)");
+        db.execSQL("CREATE TABLE " + TABLE_OUTBOX + " ("
+                + COLUMN_SEQ + " INTEGER PRIMARY KEY AUTOINCREMENT,"
+                + COLUMN_FAVORITE_ID + " INTEGER NOT NULL,"
+                + COLUMN_OPERATION + " INTEGER NOT NULL,"
+                + COLUMN_PAYLOAD + " TEXT,"
+                + COLUMN_ATTEMPTS + " INTEGER NOT NULL DEFAULT 0,"
+                + COLUMN_NEXT_ATTEMPT + " INTEGER NOT NULL DEFAULT 0,"
+                + COLUMN_SENT_AT + " INTEGER NOT NULL DEFAULT 0)");
+        db.execSQL("CREATE INDEX outbox_favorite_id ON " + TABLE_OUTBOX + " (" + COLUMN_FAVORITE_ID + ")");
+        createSearchTable(db);
+
+        // Start from a value unlikely to be reached by a previous incarnation of the database
+        ContentValues dataVersion = new ContentValues();
+        dataVersion.put(COLUMN_KEY, SYNC_DATA_VERSION);
+        dataVersion.put(COLUMN_VALUE, System.currentTimeMillis());
+        db.insert(TABLE_SYNC_STATE, null, dataVersion);
+    }
+
+    @Override
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        // Up to version 2 the tables were only a cache of the server data: rebuild them from scratch.
+        // From version 3 on, the outbox holds user changes and must be migrated instead.
+        if (oldVersion < 3) {
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_FAVORITES);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_SYNC_STATE);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_OUTBOX);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_FAVORITES_SEARCH);
+            onCreate(db);
+            return;
+        }
+        if (oldVersion < 4) {
+            createSearchTable(db);
+            db.execSQL("INSERT INTO " + TABLE_FAVORITES_SEARCH + " (docid," + COLUMN_NAME + "," + COLUMN_COMMENT + ")"
+                    + " SELECT " + COLUMN_ID + "," + COLUMN_NAME + "," + COLUMN_COMMENT + " FROM " + TABLE_FAVORITES);
+        }
+        if (oldVersion < 5) {
+            // Entries left by a previous version may have been sent: unknown, assume they were not
+            db.execSQL("ALTER TABLE " + TABLE_OUTBOX + " ADD COLUMN " + COLUMN_SENT_AT + " INTEGER NOT NULL DEFAULT 0");
+        }
+    }
+
+    /**
+     * The unicode61 tokenizer folds case and removes diacritics, like SearchKey
+     */
+    private static void createSearchTable(SQLiteDatabase db) {
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_FAVORITES_SEARCH + " USING fts4("
+                + COLUMN_NAME + "," + COLUMN_COMMENT + ", tokenize=unicode61)");
+    }
+
+    public List<Geofavorite> loadGeofavorites() {
+        List<Geofavorite> geofavs = new ArrayList<>();
+        try (Cursor c = getReadableDatabase().query(TABLE_FAVORITES, FAVORITES_COLUMNS, null, null, null, null, null)) {
+            while (c.moveToNext()) {
+                Geofavorite g = new Geofavorite();
+                g.setId(c.getInt(0));
+                if (!c.isNull(1))
+                    g.setName(c.getString(1));
+                g.setDateModified(c.getLong(2));
+                g.setDateCreated(c.getLong(3));
+                g.setLat(c.getDouble(4));
+                g.setLng(c.getDouble(5));
+                g.setCategory(c.isNull(6) ? null : c.getString(6));
+                g.setComment(c.isNull(7) ? null : c.getString(7));
+                geofavs.add(g);
+            }
+        }
+        return geofavs;
+    }
+
+    /**
+     * Inserts or updates the provided geofavorites, in a single transaction
+     */
+    public void upsertGeofavorites(List<Geofavorite> geofavs) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try (SQLiteStatement stmt = db.compileStatement(SQL_UPSERT_FAVORITE);
+             SQLiteStatement deleteSearchStmt = db.compileStatement(SQL_DELETE_SEARCH_ENTRY);
+             SQLiteStatement insertSearchStmt = db.compileStatement(SQL_INSERT_SEARCH_ENTRY)) {
+            for (Geofavorite g : geofavs) {
+                bindGeofavorite(stmt, g);
+                stmt.executeInsert();
+                indexGeofavorite(deleteSearchStmt, insertSearchStmt, g);
+            }
+            db.execSQL(SQL_BUMP_DATA_VERSION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void upsertGeofavorite(Geofavorite geofav) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try (SQLiteStatement stmt = db.compileStatement(SQL_UPSERT_FAVORITE);
+             SQLiteStatement deleteSearchStmt = db.compileStatement(SQL_DELETE_SEARCH_ENTRY);
+             SQLiteStatement insertSearchStmt = db.compileStatement(SQL_INSERT_SEARCH_ENTRY)) {
+            bindGeofavorite(stmt, geofav);
+            stmt.executeInsert();
+            indexGeofavorite(deleteSearchStmt, insertSearchStmt, geofav);
+            db.execSQL(SQL_BUMP_DATA_VERSION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public void deleteGeofavorite(int id) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(TABLE_FAVORITES, COLUMN_ID + " = ?", new String[]{String.valueOf(id)});
+            db.delete(TABLE_FAVORITES_SEARCH, "docid = ?", new String[]{String.valueOf(id)});
+            db.execSQL(SQL_BUMP_DATA_VERSION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Deletes the first count ids of the array, in a single transaction
+     */
+    public void deleteGeofavorites(int[] ids, int count) {
+        SQLiteDatabase db = getWritableDatabase();
+        db.beginTransaction();
+        try (SQLiteStatement stmt = db.compileStatement("DELETE FROM " + TABLE_FAVORITES + " WHERE " + COLUMN_ID + " = ?");
+             SQLiteStatement deleteSearchStmt = db.compileStatement(SQL_DELETE_SEARCH_ENTRY)) {
+            for (int i = 0; i < count; i++) {
+                stmt.bindLong(1, ids[i]);
+                stmt.executeUpdateDelete();
+                deleteSearchStmt.bindLong(1, ids[i]);
+                deleteSearchStmt.executeUpdateDelete();
+            }
+            db.execSQL(SQL_BUMP_DATA_VERSION);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Full text search over names and comments: each word of the text must start a word of the name
+     * or of the comment, ignoring case and accents. Only the ids and match statistics are read.
+     * @return the ids of the matching geofavorites, best first according to BM25 (words in the name
+     * weigh more), at most limit of them
+     */
+    public int[] searchGeofavorites(String text, int limit) {
+        List<String> words = SearchKey.words(SearchKey.normalize(text));
+        if (words.isEmpty())
+            return new int[0];
+        StringBuilder query = new StringBuilder();
+        for (String word : words)
+            query.append(query.length() > 0 ? " " : "").append(word).append('*');
+
+        List<long[]> matches = new ArrayList<>();
+        try (Cursor c = getReadableDatabase().rawQuery("SELECT docid, matchinfo(" + TABLE_FAVORITES_SEARCH + ", 'pcnalx')"
+                + " FROM " + TABLE_FAVORITES_SEARCH + " WHERE " + TABLE_FAVORITES_SEARCH + " MATCH ?", new String[]{query.toString()})) {
+            while (c.moveToNext()) {
+                double score = bm25(c.getBlob(1));
+                matches.add(new long[]{c.getLong(0), Double.doubleToLongBits(score)});
+            }
+        }
+        Collections.sort(matches, (m0, m1) -> Double.compare(Double.longBitsToDouble(m1[1]), Double.longBitsToDouble(m0[1])));
+
+        int[] ids = new int[Math.min(limit, matches.size())];
+        for (int i = 0; i < ids.length; i++)
+            ids[i] = (int) matches.get(i)[0];
+        return ids;
+    }
+
+    /**
+     * @param matchInfo result of matchinfo() with the 'pcnalx' format: phrase and column counts,
+     * row count, average column lengths, column lengths of the row, then for each phrase and column
+     * the hits in the row, the hits in all rows and the rows with hits (native byte order)
+     */
+    private static double bm25(byte[] matchInfo) {
+        IntBuffer info = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = info.get(0);
+        int columns = info.get(1);
+        int rows = info.get(2);
+        int averageLengths = 3;
+        int lengths = averageLengths + columns;
+        int hits = lengths + columns;
+
+        double score = 0;
+        for (int p = 0; p < phrases; p++) {
+            for (int col = 0; col < columns && col < SEARCH_COLUMN_WEIGHTS.length; col++) {
+                int x = hits + 3 * (p * columns + col);
+                int rowHits = info.get(x);
+                int rowsWithHits = info.get(x + 2);
+                if (rowHits == 0)
+                    continue;
+                // Kept positive for words found in most rows
+                double idf = Math.max(0.01, Math.log((rows - rowsWithHits + 0.5) / (rowsWithHits + 0.5)));
+                double lengthRatio = info.get(lengths + col) / Math.max(1.0, info.get(averageLengths + col));
+                score += SEARCH_COLUMN_WEIGHTS[col] * idf * rowHits * (BM25_K1 + 1)
+                        / (rowHits + BM25_K1 * (1 - BM25_B + BM25_B * lengthRatio));
+            }
+        }
+        return score;
+    }
+
+    public long getSyncState(String key) {
+        try (Cursor c = getReadableDatabase().query(TABLE_SYNC_STATE, new String[]{COLUMN_VALUE},
+                COLUMN_KEY + " = ?", new String[]{key}, null, null, null)) {
+            return c.moveToFirst() ? c.getLong(0) : 0;
+        }
+    }
+
+    public void setSyncState(String key, long value) {
+        try (SQLiteStatement stmt = getWritableDatabase().compileStatement(
+                "INSERT OR REPLACE INTO " + TABLE_SYNC_STATE + " (" + COLUMN_KEY + "," + COLUMN_VALUE + ") VALUES (?,?)")) {
+            stmt.bindString(1, key);
+            stmt.bindLong(2, value);
+            stmt.executeInsert();
+        }
+    }
+
+    /**
+     * Returns a new temporary id for a geofavorite created offline. Temporary ids are negative,
+     * so they never collide with the server ones.
+     */
+    public int nextLocalId() {
+        long lastLocalId = getSyncState(SYNC_LAST_LOCAL_ID) + 1;
+        setSyncState(SYNC_LAST_LOCAL_ID, lastLocalId);
+        return (int) -lastLocalId;
+    }
+
+    /** Outbox **/
+
+    public long insertOutboxEntry(int favoriteId, int operation, Geofavorite payload) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_FAVORITE_ID, favoriteId);
+        values.put(COLUMN_OPERATION, operation);
+        values.put(COLUMN_PAYLOAD, payload == null ? null : GSON.toJson(payload));
+        return getWritableDatabase().insert(TABLE_OUTBOX, null, values);
+    }
+
+    /**
+     * Replaces operation and payload of an entry, keeping its position in the queue
+     */
+    public void updateOutboxEntry(long seq, int operation, Geofavorite payload) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_OPERATION, operation);
+        values.put(COLUMN_PAYLOAD, payload == null ? null : GSON.toJson(payload));
+        getWritableDatabase().update(TABLE_OUTBOX, values, COLUMN_SEQ + " = ?", new String[]{String.valueOf(seq)});
+    }
+
+    public void rescheduleOutboxEntry(long seq, int attempts, long nextAttempt) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_ATTEMPTS, attempts);
+        values.put(COLUMN_NEXT_ATTEMPT, nextAttempt);
+        getWritableDatabase().update(TABLE_OUTBOX, values, COLUMN_SEQ + " = ?", new String[]{String.valueOf(seq)});
+    }
+
+    /**
+     * Records that the entry is about to be sent for the first time: from then on, the server may
+     * have applied it even if no response is received
+     */
+    public void markOutboxEntrySent(long seq, long sentAt) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_SENT_AT, sentAt);
+        getWritableDatabase().update(TABLE_OUTBOX, values, COLUMN_SEQ + " = ?", new String[]{String.valueOf(seq)});
+    }
+
+    public void deleteOutboxEntry(long seq) {
+        getWritableDatabase().delete(TABLE_OUTBOX, COLUMN_SEQ + " = ?", new String[]{String.valueOf(seq)});
+    }
+
+    /**
+     * Moves the entries of a geofavorite created offline to the id assigned by the server
+     */
+    public void remapOutboxEntries(int oldFavoriteId, int newFavoriteId) {
+        ContentValues values = new ContentValues();
+        values.put(COLUMN_FAVORITE_ID, newFavoriteId);
+        getWritableDatabase().update(TABLE_OUTBOX, values, COLUMN_FAVORITE_ID + " = ?", new String[]{String.valueOf(oldFavoriteId)});
+    }
+
+    @Nullable
+    public OutboxEntry getLatestOutboxEntry(int favoriteId) {
+        try (Cursor c = getReadableDatabase().query(TABLE_OUTBOX, OUTBOX_COLUMNS,
+                COLUMN_FAVORITE_ID + " = ?", new String[]{String.valueOf(favoriteId)},
+                null, null, COLUMN_SEQ + " DESC", "1")) {
+            return c.moveToFirst() ? readOutboxEntry(c) : null;
+        }
+    }
+
+    /**
+     * Returns the oldest entry that is due, among the first entries of each geofavorite:
+     * the operations of a geofavorite are sent in order, the ones of different geofavorites
+     * do not wait for each other.
+     */
+    @Nullable
+    public OutboxEntry getNextDueOutboxEntry(long now) {
+        try (Cursor c = getReadableDatabase().rawQuery("SELECT " + String.join(",", OUTBOX_COLUMNS)
+                + " FROM " + TABLE_OUTBOX + " o"
+                + " WHERE " + COLUMN_NEXT_ATTEMPT + " <= ?"
+                + " AND " + COLUMN_SEQ + " = (SELECT MIN(" + COLUMN_SEQ + ") FROM " + TABLE_OUTBOX
+                + " WHERE " + COLUMN_FAVORITE_ID + " = o." + COLUMN_FAVORITE_ID + ")"
+                + " ORDER BY " + COLUMN_SEQ + " LIMIT 1", new String[]{String.valueOf(now)})) {
+            return c.moveToFirst() ? readOutboxEntry(c) : null;
+        }
+    }
+
+    /**
+     * @return the time of the earliest scheduled attempt, or -1 if the outbox is empty
+     */
+    public long getNextOutboxAttempt() {
+        try (Cursor c = getReadableDatabase().rawQuery("SELECT MIN(" + COLUMN_NEXT_ATTEMPT + ") FROM " + TABLE_OUTBOX, null)) {
+            return c.moveToFirst() && !c.isNull(0) ? c.getLong(0) : -1;
+        }
+    }
+
+    /**
+     * @return the favorite id of every outbox entry (repeated for geofavorites having more entries)
+     */
+    public int[] loadOutboxFavoriteIds() {
+        try (Cursor c = getReadableDatabase().query(TABLE_OUTBOX, new String[]{COLUMN_FAVORITE_ID}, null, null, null, null, null)) {
+            int[] ids = new int[c.getCount()];
+            for (int i = 0; c.moveToNext(); i++)
+                ids[i] = c.getInt(0);
+            return ids;
+        }
+    }
+
+    private static OutboxEntry readOutboxEntry(Cursor c) {
+        OutboxEntry e = new OutboxEntry();
+        e.seq = c.getLong(0);
+        e.favoriteId = c.getInt(1);
+        e.operation = c.getInt(2);
+        e.payload = c.isNull(3) ? null : GSON.fromJson(c.getString(3), Geofavorite.class);
+        e.attempts = c.getInt(4);
+        e.nextAttempt = c.getLong(5);
+        e.sentAt = c.getLong(6);
+        return e;
+    }
+
+    private static void bindGeofavorite(SQLiteStatement stmt, Geofavorite g) {
+        stmt.clearBindings();
+        stmt.bindLong(1, g.getId());
+        bindNullableString(stmt, 2, g.getName());
+        stmt.bindLong(3, g.getDateModified());
+        stmt.bindLong(4, g.getDateCreated());
+        stmt.bindDouble(5, g.getLat());
+        stmt.bindDouble(6, g.getLng());
+        bindNullableString(stmt, 7, g.getCategory());
+        bindNullableString(stmt, 8, g.getComment());
+    }
+
+    private static void indexGeofavorite(SQLiteStatement deleteStmt, SQLiteStatement insertStmt, Geofavorite g) {
+        deleteStmt.bindLong(1, g.getId());
+        deleteStmt.executeUpdateDelete();
+        insertStmt.clearBindings();
+        insertStmt.bindLong(1, g.getId());
+        bindNullableString(insertStmt, 2, g.getName());
+        bindNullableString(insertStmt, 3, g.getComment());
+        insertStmt.executeInsert();
+    }
+
+    private static void bindNullableString(SQLiteStatement stmt, int index, String value) {
+        if (value == null)
+            stmt.bindNull(index);
+        else
+            stmt.bindString(index, value);
+    }
+
+    /**
+     * A pending change to send to the server
+     */
+    public static class OutboxEntry {
+        public long seq;
+        public int favoriteId;
+        /** One of OUTBOX_CREATE, OUTBOX_UPDATE, OUTBOX_DELETE */
+        public int operation;
+        /** Geofavorite to send, null for deletions */
+        @Nullable
+        public Geofavorite payload;
+        public int attempts;
+        public long nextAttempt;
+        /** Time (in ms) of the first attempt to send the entry, 0 if never sent */
+        public long sentAt;
+    }
+}
@@ -0,0 +1,306 @@
+package com.nickgirga.nextcloudmapsgeofavorites.repository;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import com.nextcloud.android.sso.api.NextcloudAPI;
+
+import java.util.Objects;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.nickgirga.nextcloudmapsgeofavorites.api.API;
+import com.nickgirga.nextcloudmapsgeofavorites.api.ApiProvider;
+import com.nickgirga.nextcloudmapsgeofavorites.api.GeofavoritesStreamReader;
+import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+import com.nickgirga.nextcloudmapsgeofavorites.repository.GeofavoriteDatabase.OutboxEntry;
+import com.nickgirga.nextcloudmapsgeofavorites.utils.IntIntMap;
+import retrofit2.Response;
+
+/**
+ * Write-behind queue of the local changes still to be sent to the server, persisted in the database.
+ * Changes to the same geofavorite are collapsed (e.g. create + update is sent as a single create,
+ * update + delete as a single delete) and sent in order; failed requests are retried with
+ * exponential backoff.
+ * A create that was sent may have reached the server even if no response came back (timeout,
+ * process death): before sending it again, the server favorites are searched for it, so that it
+ * is not created twice.
+ * enqueue() and hasPendingChanges() must be called from the repository disk executor,
+ * requests are sent from an own thread.
+ */
+class GeofavoriteOutbox {
+    private static final String TAG = "GeofavoriteOutbox";
+    private static final long MIN_RETRY_DELAY_MS = 5 * 1000;
+    private static final long MAX_RETRY_DELAY_MS = 30 * 60 * 1000;
+    // Margin for the clock difference with the server, when looking for a created favorite
+    private static final long CLOCK_SKEW_S = 60 * 60;
+    private static final int RECONCILE_CHUNK_SIZE = 500;
+    // Coordinates can lose precision on the server, in degrees
+    private static final double COORDINATES_TOLERANCE = 1e-6;
+
+    private final Context applicationContext;
+    private final GeofavoriteRepository mRepository;
+    private final GeofavoriteDatabase mDatabase;
+    private final ScheduledExecutorService mSendExecutor;
+    private ScheduledFuture<?> mScheduledDrain;
+
+    // Accessed only from the repository disk executor
+    private final IntIntMap mPendingCounts = new IntIntMap(16, 0);
+    private long mInFlightSeq = -1;
+
+    GeofavoriteOutbox(Context applicationContext, GeofavoriteRepository repository, GeofavoriteDatabase database) {
+        this.applicationContext = applicationContext;
+        this.mRepository = repository;
+        this.mDatabase = database;
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        this.mSendExecutor = executor;
+    }
+
+    /**
+     * Loads the changes left by a previous session
+     */
+    void load() {
+        mPendingCounts.clear();
+        for (int favoriteId : mDatabase.loadOutboxFavoriteIds())
+            mPendingCounts.put(favoriteId, mPendingCounts.get(favoriteId) + 1);
+    }
+
+    /**
+     * @return true if the geofavorite has changes not yet acknowledged by the server:
+     * its local version must not be overwritten or deleted by a sync
+     */
+    boolean hasPendingChanges(int favoriteId) {
+        return mPendingCounts.get(favoriteId) > 0;
+    }
+
+    void enqueue(int favoriteId, int operation, @Nullable Geofavorite payload) {
+        OutboxEntry latest = hasPendingChanges(favoriteId) ? mDatabase.getLatestOutboxEntry(favoriteId) : null;
+        // The entry being sent cannot be changed anymore, nor a create that may already be on the server
+        boolean sent = latest != null && (latest.seq == mInFlightSeq
+                || (latest.operation == GeofavoriteDatabase.OUTBOX_CREATE && latest.sentAt > 0));
+        if (latest != null && !sent) {
+            switch (latest.operation) {
+                case GeofavoriteDatabase.OUTBOX_CREATE:
+                    if (operation == GeofavoriteDatabase.OUTBOX_DELETE) {
+                        // Never reached the server: nothing to send at all
+                        mDatabase.deleteOutboxEntry(latest.seq);
+                        decrementPending(favoriteId);
+                    } else {
+                        mDatabase.updateOutboxEntry(latest.seq, GeofavoriteDatabase.OUTBOX_CREATE, payload);
+                    }
+                    return;
+                case GeofavoriteDatabase.OUTBOX_UPDATE:
+                    // The newer update or delete supersedes the previous update
+                    mDatabase.updateOutboxEntry(latest.seq, operation, payload);
+                    return;
+                case GeofavoriteDatabase.OUTBOX_DELETE:
+                    // Already deleted: later changes are meaningless
+                    return;
+            }
+        }
+
+        mDatabase.insertOutboxEntry(favoriteId, operation, payload);
+        mPendingCounts.put(favoriteId, mPendingCounts.get(favoriteId) + 1);
+    }
+
+    /**
+     * Starts sending the pending changes after the given delay, unless a drain is already scheduled sooner
+     */
+    synchronized void scheduleDrain(long delayMs) {
+        if (mSendExecutor.isShutdown())
+            return;
+        if (mScheduledDrain != null && !mScheduledDrain.isDone()) {
+            if (mScheduledDrain.getDelay(TimeUnit.MILLISECONDS) <= delayMs)
+                return;
+            mScheduledDrain.cancel(false);
+        }
+        mScheduledDrain = mSendExecutor.schedule(this::drain, delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    void shutdown() {
+        mSendExecutor.shutdownNow();
+    }
+
+    /**
+     * Sends the due changes one by one, then schedules the next retry if any. Runs on mSendExecutor.
+     */
+    private void drain() {
+        boolean reachable = true;
+        while (reachable) {
+            long now = System.currentTimeMillis();
+            OutboxEntry[] next = new OutboxEntry[1];
+            boolean[] sentBefore = new boolean[1];
+            boolean alive = mRepository.runOnDiskAndWait(() -> {
+                next[0] = mDatabase.getNextDueOutboxEntry(now);
+                mInFlightSeq = next[0] != null ? next[0].seq : -1;
+                if (next[0] != null) {
+                    sentBefore[0] = next[0].sentAt > 0;
+                    if (!sentBefore[0]) {
+                        // Persisted before sending, so that a create is reconciled even after a process death
+                        next[0].sentAt = now;
+                        mDatabase.markOutboxEntrySent(next[0].seq, now);
+                    }
+                }
+            });
+            if (!alive || next[0] == null)
+                break;
+
+            OutboxEntry entry = next[0];
+            if (entry.operation == GeofavoriteDatabase.OUTBOX_CREATE && sentBefore[0]) {
+                // Sent before without an answer: it may already exist on the server
+                Geofavorite created;
+                try {
+                    created = findCreated(entry);
+                } catch (Exception e) {
+                    Log.e(TAG, "Unable to look for created geofavorite " + entry.favoriteId + ": " + e);
+                    reachable = false;
+                    reschedule(entry);
+                    continue;
+                }
+                if (created != null) {
+                    mRepository.runOnDiskAndWait(() -> onSent(entry, created));
+                    continue;
+                }
+            }
+
+            Response<Geofavorite> response = send(entry);
+            if (response != null && response.isSuccessful()) {
+                mRepository.runOnDiskAndWait(() -> onSent(entry, response.body()));
+            } else if (response != null && isPermanentFailure(response.code())) {
+                Log.w(TAG, "Change to geofavorite " + entry.favoriteId + " rejected: " + response.code());
+                mRepository.runOnDiskAndWait(() -> onRejected(entry));
+            } else {
+                // Server unreachable or temporarily failing: wait before retrying
+                reachable = response != null;
+                reschedule(entry);
+            }
+        }
+
+        long[] nextAttempt = {-1};
+        if (mRepository.runOnDiskAndWait(() -> nextAttempt[0] = mDatabase.getNextOutboxAttempt()) && nextAttempt[0] >= 0)
+            scheduleDrain(Math.max(0, nextAttempt[0] - System.currentTimeMillis()));
+    }
+
+    private void reschedule(OutboxEntry entry) {
+        mRepository.runOnDiskAndWait(() -> {
+            mInFlightSeq = -1;
+            int attempts = entry.attempts + 1;
+            long delay = Math.min(MAX_RETRY_DELAY_MS, MIN_RETRY_DELAY_MS << Math.min(attempts - 1, 20));
+            mDatabase.rescheduleOutboxEntry(entry.seq, attempts, System.currentTimeMillis() + delay);
+        });
+    }
+
+    /**
+     * Looks for the favorite of a create entry among the server favorites modified since it was
+     * first sent: same name and coordinates, and not already matched by another create.
+     * @return the favorite created on the server, or null if the create never reached it
+     * @throws Exception if the server favorites cannot be fetched
+     */
+    @Nullable
+    private Geofavorite findCreated(OutboxEntry entry) throws Exception {
+        NextcloudAPI nextcloudAPI = ApiProvider.getNextcloudAPI(applicationContext, mRepository.getAccountName());
+        if (nextcloudAPI == null)
+            throw new IllegalStateException("No Nextcloud account available");
+        Geofavorite payload = entry.payload;
+        Geofavorite[] found = new Geofavorite[1];
+        GeofavoritesStreamReader.fetch(nextcloudAPI, entry.sentAt / 1000 - CLOCK_SKEW_S, RECONCILE_CHUNK_SIZE, chunk -> {
+            for (Geofavorite g : chunk) {
+                if (found[0] == null && Objects.equals(emptyToNull(g.getName()), emptyToNull(payload.getName()))
+                        && Math.abs(g.getLat() - payload.getLat()) <= COORDINATES_TOLERANCE
+                        && Math.abs(g.getLng() - payload.getLng()) <= COORDINATES_TOLERANCE
+                        && !mRepository.isCreatedId(g.getId()))
+                    found[0] = g;
+            }
+        });
+        return found[0];
+    }
+
+    @Nullable
+    private static String emptyToNull(@Nullable String s) {
+        return s == null || s.isEmpty() ? null : s;
+    }
+
+    /**
+     * @return the server response, or null if the server could not be reached
+     */
+    @Nullable
+    private Response<Geofavorite> send(OutboxEntry entry) {
+        // Not necessarily the current account: changes are sent also after switching to another one
+        API api = ApiProvider.getAPI(applicationContext, mRepository.getAccountName());
+        if (api == null)
+            return null;
+
+        try {
+            switch (entry.operation) {
+                case GeofavoriteDatabase.OUTBOX_CREATE:
+                    // The local id is only a placeholder: the server assigns the real one
+                    entry.payload.setId(0);
+                    return api.createGeofavorite(entry.payload).execute();
+                case GeofavoriteDatabase.OUTBOX_UPDATE:
+                    entry.payload.setId(entry.favoriteId);
+                    return api.updateGeofavorite(entry.favoriteId, entry.payload).execute();
+                case GeofavoriteDatabase.OUTBOX_DELETE:
+                    return api.deleteGeofavorite(entry.favoriteId).execute();
+                default:
+                    Log.e(TAG, "Unknown outbox operation: " + entry.operation);
+                    return null;
+            }
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to send change to geofavorite " + entry.favoriteId + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Runs on the repository disk executor
+     */
+    private void onSent(OutboxEntry entry, @Nullable Geofavorite result) {
+        mInFlightSeq = -1;
+        mDatabase.deleteOutboxEntry(entry.seq);
+        decrementPending(entry.favoriteId);
+
+        if (entry.operation == GeofavoriteDatabase.OUTBOX_CREATE && result != null) {
+            // Later changes to the geofavorite must be sent with the id assigned by the server
+            int pending = mPendingCounts.remove(entry.favoriteId);
+            if (pending > 0) {
+                mDatabase.remapOutboxEntries(entry.favoriteId, result.getId());
+                mPendingCounts.put(result.getId(), pending);
+            }
+            mRepository.onGeofavoriteCreated(entry.favoriteId, result);
+        } else if (entry.operation == GeofavoriteDatabase.OUTBOX_UPDATE && result != null && !hasPendingChanges(entry.favoriteId)) {
+            mRepository.onGeofavoriteUpdated(result);
+        }
+    }
+
+    /**
+     * Runs on the repository disk executor
+     */
+    private void onRejected(OutboxEntry entry) {
+        mInFlightSeq = -1;
+        mDatabase.deleteOutboxEntry(entry.seq);
+        decrementPending(entry.favoriteId);
+        mRepository.onGeofavoriteChangeRejected(entry.favoriteId);
+    }
+
+    private void decrementPending(int favoriteId) {
+        int pending = mPendingCounts.get(favoriteId) - 1;
+        if (pending > 0)
+            mPendingCounts.put(favoriteId, pending);
+        else
+            mPendingCounts.remove(favoriteId);
+    }
+
+    /**
+     * Client errors will not go away by retrying, except timeouts and rate limiting
+     */
+    private static boolean isPermanentFailure(int code) {
+        return code >= 400 && code < 500 && code != 408 && code != 429;
+    }
+}
@@ -1,63 +1,188 @@
 package com.nickgirga.nextcloudmapsgeofavorites.repository;
 
 import android.content.Context;
+import android.database.sqlite.SQLiteException;
 import android.util.Log;
 
-import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.lifecycle.MutableLiveData;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.nextcloud.android.sso.api.NextcloudAPI;
+import com.nextcloud.android.sso.exceptions.NextcloudFilesAppAccountNotFoundException;
+import com.nextcloud.android.sso.exceptions.NoCurrentAccountSelectedException;
+import com.nextcloud.android.sso.helper.SingleAccountHelper;
 
 import com.nickgirga.nextcloudmapsgeofavorites.api.ApiProvider;
+import com.nickgirga.nextcloudmapsgeofavorites.api.GeofavoritesStreamReader;
 import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteCategory;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteSnapshot;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteTable;
+import com.nickgirga.nextcloudmapsgeofavorites.utils.FuzzyIndex;
+import com.nickgirga.nextcloudmapsgeofavorites.utils.IntIntMap;
 import com.nickgirga.nextcloudmapsgeofavorites.utils.SingleLiveEvent;
-import retrofit2.Call;
-import retrofit2.Callback;
-import retrofit2.Response;
+import com.nickgirga.nextcloudmapsgeofavorites.utils.TrigramIndex;
 
 /**
- * Singleton pattern
+ * One instance per account: the instances of the MAX_WARM_ACCOUNTS most recently used accounts
+ * are kept in memory, so that switching between them is immediate.
+ * Geofavorites are read from the local database first and then reconciled with the server.
+ * The dataset is only modified from mDiskExecutor, which also keeps the database in sync:
+ * the cached data is loaded by the first task, so it can never overwrite a server response.
+ * Observers receive immutable GeofavoriteSnapshots, that can be read from any thread.
+ * Local changes are applied immediately and sent to the server in background by GeofavoriteOutbox.
  */
 public class GeofavoriteRepository {
 
     private static final String TAG = "GeofavoriteRepository";
-    private static GeofavoriteRepository instance;
-    private MutableLiveData<List<Geofavorite>> mGeofavorites;
-    private MutableLiveData<HashSet<String>> mCategories = new MutableLiveData<HashSet<String>>();
+    private static final long FULL_SYNC_INTERVAL_MS = 24 * 60 * 60 * 1000;
+    private static final long FRESHNESS_WINDOW_MS = 30 * 1000;
+    private static final int NO_ID = 0;
+    private static final int SYNC_CHUNK_SIZE = 500;
+    private static final int MAX_WARM_ACCOUNTS = 3;
+
+    // Account name -> repository, in access order: the least recently used ones are closed
+    private static final LinkedHashMap<String, GeofavoriteRepository> sInstances =
+            new LinkedHashMap<String, GeofavoriteRepository>(MAX_WARM_ACCOUNTS + 1, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, GeofavoriteRepository> eldest) {
+                    if (size() <= MAX_WARM_ACCOUNTS)
+                        return false;
+                    eldest.getValue().close();
+                    return true;
+                }
+            };
+
+    private MutableLiveData<GeofavoriteSnapshot> mGeofavorites = new MutableLiveData<>(GeofavoriteSnapshot.EMPTY);
+    private MutableLiveData<Map<String, GeofavoriteCategory>> mCategories = new MutableLiveData<>(Collections.emptyMap());
     private MutableLiveData<Boolean> mIsUpdating = new MutableLiveData<>(false);
     private SingleLiveEvent<Boolean> mOnFinished = new SingleLiveEvent<>();
 
     private Context applicationContext;
+    @Nullable
+    private final String mAccountName;
+    private final GeofavoriteDatabase mDatabase;
+    private final File mSnapshotFile;
+    // Data version of the database the snapshot file reflects
+    private long mSnapshotFileVersion = -1;
+    private final ExecutorService mDiskExecutor;
+    private final ExecutorService mNetworkExecutor;
+    private final GeofavoriteOutbox mOutbox;
+    // Modified only from mDiskExecutor, its snapshots are published to the other threads
+    private final GeofavoriteSnapshot.Builder mDataset = new GeofavoriteSnapshot.Builder();
+    private volatile GeofavoriteSnapshot mSnapshot = GeofavoriteSnapshot.EMPTY;
+    // Modified only from mDiskExecutor, along with the snapshots
+    private final CategoryIndex mCategoryIndex = new CategoryIndex();
+    private final TrigramIndex mSearchIndex = new TrigramIndex();
+    private final FuzzyIndex mFuzzyIndex = new FuzzyIndex();
+    // Temporary ids of the geofavorites created offline -> ids assigned by the server. Guarded by itself.
+    private final IntIntMap mLocalIdRemap = new IntIntMap(16, NO_ID);
+    private long mHighWaterMark = 0;
+    private long mLastFullSync = 0;
+    // State of the sync in progress: ids received (full syncs only) and highest modification date
+    private IntIntMap mSyncSeenIds;
+    private long mSyncHighWaterMark;
+    // Set if a chunk could not be written: the rows received are not all stored
+    private boolean mSyncIncomplete;
+    private volatile boolean mClosed = false;
+    private final AtomicBoolean mSyncInFlight = new AtomicBoolean(false);
+    private volatile long mLastSuccessfulSync = 0;
 
-    public GeofavoriteRepository(Context applicationContext) {
+    public GeofavoriteRepository(Context applicationContext, @Nullable String accountName) {
         this.applicationContext = applicationContext;
+        this.mAccountName = accountName;
+        this.mDatabase = new GeofavoriteDatabase(applicationContext, accountName);
+        this.mSnapshotFile = GeofavoriteSnapshotFile.getFile(applicationContext, accountName);
+
+        this.mDiskExecutor = newSerialExecutor();
+        this.mNetworkExecutor = newSerialExecutor();
+        this.mOutbox = new GeofavoriteOutbox(applicationContext, this, mDatabase);
+
+        loadLocalGeofavorites();
     }
 
-    public static GeofavoriteRepository getInstance(Context applicationContext) {
-        if(instance == null){
-            instance = new GeofavoriteRepository(applicationContext);
+    /**
+     * @return the repository of the current account
+     */
+    public static synchronized GeofavoriteRepository getInstance(Context context) {
+        String accountName = getAccountName(context);
+        String key = accountName != null ? accountName : "";
+        GeofavoriteRepository instance = sInstances.get(key);
+        if (instance == null) {
+            instance = new GeofavoriteRepository(context.getApplicationContext(), accountName);
+            sInstances.put(key, instance);
         }
         return instance;
     }
 
-    public static void resetInstance() {
-        instance = null;
+    /**
+     * Releases the repository when it is evicted from the warm accounts.
+     * Its local data is kept: changes not yet sent are resumed when the account is used again.
+     */
+    private void close() {
+        mOutbox.shutdown();
+        mDiskExecutor.execute(() -> {
+            mClosed = true;
+            mDatabase.close();
+        });
     }
 
-    public MutableLiveData<List<Geofavorite>> getGeofavorites(){
-        if (mGeofavorites == null) {
-            mGeofavorites = new MutableLiveData<>();
-            mGeofavorites.setValue(new ArrayList<>());
-        }
+    public MutableLiveData<GeofavoriteSnapshot> getGeofavorites(){
         return mGeofavorites;
     }
 
-    public MutableLiveData<HashSet<String>> getCategories() {
+    /**
+     * @return the categories in use, by name
+     */
+    public MutableLiveData<Map<String, GeofavoriteCategory>> getCategories() {
         return mCategories;
     }
 
+    /**
+     * @return the text search index of the published snapshots
+     */
+    public TrigramIndex getSearchIndex() {
+        return mSearchIndex;
+    }
+
+    /**
+     * @return the typo tolerant search index of the published snapshots
+     */
+    public FuzzyIndex getFuzzyIndex() {
+        return mFuzzyIndex;
+    }
+
+    /**
+     * Full text search of the stored geofavorites (see GeofavoriteDatabase.searchGeofavorites()),
+     * can be called from any background thread
+     * @return the ids of the best matches first, or null if the database is not available
+     */
+    @Nullable
+    public int[] searchFullText(String text, int limit) {
+        if (mClosed)
+            return null;
+        try {
+            return mDatabase.searchGeofavorites(text, limit);
+        } catch (SQLiteException | IllegalStateException e) {
+            Log.e(TAG, "Full text search error: " + e);
+            return null;
+        }
+    }
+
     public MutableLiveData<Boolean> isUpdating() {
         return mIsUpdating;
     }
@@ -67,110 +192,401 @@ public class GeofavoriteRepository {
     }
 
     public void updateGeofavorites() {
-        mIsUpdating.postValue(true);
-        // Obtain geofavorites
-        Call<List<Geofavorite>> call = ApiProvider.getAPI(this.applicationContext).getGeofavorites();
-        call.enqueue(new Callback<List<Geofavorite>>() {
-            @Override
-            public void onResponse(@NonNull Call<List<Geofavorite>> call, @NonNull Response<List<Geofavorite>> response) {
-                if (response.isSuccessful() && response.body() != null) {
-                    mGeofavorites.postValue(response.body());
-                    updateCategories(response.body());
-                    mIsUpdating.postValue(false);
-                    mOnFinished.postValue(true);
-                } else {
-                    onFailure(call, new Throwable("Dataset is empty"));
-                }
-            }
+        updateGeofavorites(false);
+    }
 
-            @Override
-            public void onFailure(@NonNull Call<List<Geofavorite>> call, @NonNull Throwable t) {
+    /**
+     * Fetches the geofavorites changed since the last sync, or all of them when a full
+     * reconciliation is due (first sync, or FULL_SYNC_INTERVAL_MS elapsed since the last one):
+     * only full syncs can detect geofavorites deleted from other clients.
+     * Overlapping requests are coalesced into the one already in flight, and unless forced,
+     * requests issued within FRESHNESS_WINDOW_MS of a successful sync are served from memory.
+     * @param force if true, ignores the freshness window (e.g. explicit user refresh)
+     */
+    public void updateGeofavorites(boolean force) {
+        if (!force && System.currentTimeMillis() - mLastSuccessfulSync < FRESHNESS_WINDOW_MS) {
+            if (!mSyncInFlight.get())
                 mIsUpdating.postValue(false);
-                mOnFinished.postValue(false);
-            }
+            return;
+        }
+        if (!mSyncInFlight.compareAndSet(false, true))
+            return;
+
+        mIsUpdating.postValue(true);
+        runOnDisk(() -> {
+            boolean fullSync = mHighWaterMark == 0
+                    || System.currentTimeMillis() - mLastFullSync > FULL_SYNC_INTERVAL_MS;
+            mSyncSeenIds = fullSync ? new IntIntMap(mDataset.size(), 0) : null;
+            mSyncHighWaterMark = mHighWaterMark;
+            mSyncIncomplete = false;
+            // pruneBefore is exclusive: step back one second not to miss changes made in the same second of the last sync
+            long pruneBefore = fullSync ? 0 : mHighWaterMark - 1;
+            mNetworkExecutor.execute(() -> streamGeofavorites(pruneBefore));
         });
     }
 
+    /**
+     * @return a copy of the geofavorite, that the caller can freely modify, or null
+     */
     public Geofavorite getGeofavorite(int id) {
-        for (Geofavorite g : mGeofavorites.getValue()) {
-            if (g.getId() == id)
-                return g;
-        }
-        return null;
+        Geofavorite geofav = mSnapshot.findById(resolveId(id));
+        return geofav == null ? null : new Geofavorite(geofav);
     }
 
+    /**
+     * Applies the change locally and queues it to be sent to the server:
+     * onFinished() is posted without waiting for the network.
+     */
     public void saveGeofavorite(Geofavorite geofav) {
-        mIsUpdating.postValue(true);
-        Call<Geofavorite> call;
-        if (geofav.getId() == 0) {
-            // New geofavorite
-            call = ApiProvider.getAPI(this.applicationContext).createGeofavorite(geofav);
-        } else {
-            // Update existing geofavorite
-            call = ApiProvider.getAPI(this.applicationContext).updateGeofavorite(geofav.getId(), geofav);
-        }
-        call.enqueue(new Callback<Geofavorite>() {
-            @Override
-            public void onResponse(Call<Geofavorite> call, Response<Geofavorite> response) {
-                if (response.isSuccessful()) {
-                    List<Geofavorite> geofavs = mGeofavorites.getValue();
-                    if (geofav.getId() != 0) {
-                        geofavs.remove(geofav);
-                    }
-                    geofavs.add(response.body());
-                    mGeofavorites.postValue(geofavs);
-                    mIsUpdating.postValue(false);
-                    mOnFinished.postValue(true);
-                } else {
-                    mIsUpdating.postValue(false);
-                    mOnFinished.postValue(false);
+        // The caller may keep modifying its instance, while the saved one gets published
+        Geofavorite saved = new Geofavorite(geofav);
+        runOnDisk(() -> {
+            try {
+                int id = resolveId(saved.getId());
+                int operation = GeofavoriteDatabase.OUTBOX_UPDATE;
+                if (id == NO_ID) {
+                    // New geofavorite: it gets a temporary id until the server assigns the real one
+                    id = mDatabase.nextLocalId();
+                    operation = GeofavoriteDatabase.OUTBOX_CREATE;
                 }
-            }
-
-            @Override
-            public void onFailure(Call<Geofavorite> call, Throwable t) {
-                Log.e(TAG, t.getMessage());
-                mIsUpdating.postValue(false);
+                saved.setId(id);
+                mDataset.put(saved);
+                mDatabase.upsertGeofavorite(saved);
+                mOutbox.enqueue(id, operation, saved);
+            } catch (RuntimeException e) {
                 mOnFinished.postValue(false);
+                throw e;
             }
+            publish();
+            mOnFinished.postValue(true);
+            mOutbox.scheduleDrain(0);
         });
     }
 
     public void deleteGeofavorite(Geofavorite geofav) {
-        mIsUpdating.postValue(true);
-        // Delete Geofavorite
-        Call<Geofavorite> call = ApiProvider.getAPI(this.applicationContext).deleteGeofavorite(geofav.getId());
-        call.enqueue(new Callback<Geofavorite>() {
-            @Override
-            public void onResponse(Call<Geofavorite> call, Response<Geofavorite> response) {
-                List<Geofavorite> geofavs = mGeofavorites.getValue();
-                if (geofavs.remove(geofav)) {
-                    mGeofavorites.postValue(geofavs);
-                    mIsUpdating.postValue(false);
-                    mOnFinished.postValue(true);
-                } else {
+        runOnDisk(() -> {
+            int id = resolveId(geofav.getId());
+            try {
+                if (!mDataset.remove(id)) {
                     // Should never happen
-                    mIsUpdating.postValue(false);
                     mOnFinished.postValue(false);
+                    return;
                 }
+                mDatabase.deleteGeofavorite(id);
+                mOutbox.enqueue(id, GeofavoriteDatabase.OUTBOX_DELETE, null);
+            } catch (RuntimeException e) {
+                mOnFinished.postValue(false);
+                throw e;
             }
+            publish();
+            mOnFinished.postValue(true);
+            mOutbox.scheduleDrain(0);
+        });
+    }
 
-            @Override
-            public void onFailure(Call<Geofavorite> call, Throwable t) {
+    /**
+     * Publishes the geofavorites stored on disk, so that showing content does not depend on the network.
+     * Being the first task of mDiskExecutor, it always runs before any server response is handled.
+     * The snapshot file is preferred to the database: its rows are decoded only when read.
+     */
+    private void loadLocalGeofavorites() {
+        runOnDisk(() -> {
+            mHighWaterMark = mDatabase.getSyncState(GeofavoriteDatabase.SYNC_HIGH_WATER_MARK);
+            mLastFullSync = mDatabase.getSyncState(GeofavoriteDatabase.SYNC_LAST_FULL_SYNC);
+            mOutbox.load();
+            long dataVersion = mDatabase.getSyncState(GeofavoriteDatabase.SYNC_DATA_VERSION);
+            GeofavoriteSnapshotFile snapshotFile = GeofavoriteSnapshotFile.open(mSnapshotFile, dataVersion);
+            if (snapshotFile != null) {
+                mSnapshotFileVersion = dataVersion;
+                mDataset.setAll(snapshotFile);
+            } else {
+                // Only the columns are kept, the geofavorites loaded are released
+                mDataset.setAll(GeofavoriteTable.of(mDatabase.loadGeofavorites()));
+            }
+            if (mDataset.size() > 0) {
+                publish();
+                // Outdated or missing: make the next start faster
+                writeSnapshotFile();
+            }
+            // Resume sending the changes left by a previous session
+            mOutbox.scheduleDrain(0);
+        });
+    }
+
+    /**
+     * Downloads the geofavorites, merging them into the dataset chunk by chunk while the response
+     * is decoded. Runs on mNetworkExecutor.
+     */
+    private void streamGeofavorites(long pruneBefore) {
+        boolean success = false;
+        try {
+            NextcloudAPI nextcloudAPI = ApiProvider.getNextcloudAPI(this.applicationContext, mAccountName);
+            if (nextcloudAPI == null)
+                throw new IllegalStateException("No Nextcloud account available");
+            GeofavoritesStreamReader.fetch(nextcloudAPI, pruneBefore, SYNC_CHUNK_SIZE,
+                    chunk -> runOnDisk(() -> onSyncChunk(chunk)));
+            success = true;
+        } catch (Exception e) {
+            Log.e(TAG, "Unable to fetch geofavorites: " + e);
+        }
+
+        boolean synced = success;
+        runOnDisk(() -> {
+            try {
+                if (synced) {
+                    onSyncCompleted();
+                    mLastSuccessfulSync = System.currentTimeMillis();
+                    // The server is reachable again: no need to wait for the next retry
+                    mOutbox.scheduleDrain(0);
+                }
+                mOnFinished.postValue(synced);
+            } finally {
+                mSyncSeenIds = null;
+                mSyncInFlight.set(false);
                 mIsUpdating.postValue(false);
-                mOnFinished.postValue(false);
             }
         });
     }
 
-    private void updateCategories(List<Geofavorite> geofavs) {
-        HashSet<String> categories = new HashSet<>();
-        for (Geofavorite g : geofavs) {
-            String cat = g.getCategory();
-            if (cat != null)
-                categories.add(cat);
+    /**
+     * Merges a chunk of the server response into the dataset. Runs on mDiskExecutor.
+     */
+    private void onSyncChunk(List<Geofavorite> chunk) {
+        boolean written = false;
+        try {
+            List<Geofavorite> merged = new ArrayList<>(chunk.size());
+            for (Geofavorite g : chunk) {
+                mSyncHighWaterMark = Math.max(mSyncHighWaterMark, g.getDateModified());
+                // Local changes not yet sent are newer than the server version
+                if (mOutbox.hasPendingChanges(g.getId()))
+                    continue;
+                mDataset.put(g);
+                merged.add(g);
+                if (mSyncSeenIds != null)
+                    mSyncSeenIds.put(g.getId(), 0);
+            }
+            publish();
+
+            mDatabase.upsertGeofavorites(merged);
+            written = true;
+        } finally {
+            if (!written)
+                mSyncIncomplete = true;
+        }
+    }
+
+    /**
+     * Called once the whole response has been merged. After a full sync, removes the geofavorites
+     * the server did not return (deleted from other clients), unless they have local changes
+     * still to be sent. Runs on mDiskExecutor.
+     */
+    private void onSyncCompleted() {
+        if (mSyncSeenIds != null) {
+            int[] deleted = new int[mDataset.size()];
+            int count = 0;
+            for (int i = 0; i < mDataset.size(); i++) {
+                int id = mDataset.getAt(i).getId();
+                if (!mSyncSeenIds.containsKey(id) && !mOutbox.hasPendingChanges(id))
+                    deleted[count++] = id;
+            }
+            if (count > 0) {
+                for (int i = 0; i < count; i++)
+                    mDataset.remove(deleted[i]);
+                publish();
+                mDatabase.deleteGeofavorites(deleted, count);
+            }
+
+            // A full sync with rows not stored must be done again
+            if (!mSyncIncomplete) {
+                mLastFullSync = System.currentTimeMillis();
+                mDatabase.setSyncState(GeofavoriteDatabase.SYNC_LAST_FULL_SYNC, mLastFullSync);
+            }
+        }
+        if (mSyncIncomplete) {
+            // The rows not stored are fetched again by the next sync, from the current high-water mark.
+            // The snapshot file is not written either, as it would not reflect the database.
+            Log.w(TAG, "Sync incomplete, the high-water mark is kept");
+            return;
+        }
+
+        // Commit the high-water mark only now: rows are not sorted by modification date
+        if (mSyncHighWaterMark != mHighWaterMark) {
+            mHighWaterMark = mSyncHighWaterMark;
+            mDatabase.setSyncState(GeofavoriteDatabase.SYNC_HIGH_WATER_MARK, mHighWaterMark);
+        }
+        writeSnapshotFile();
+    }
+
+    /*
+     * Outbox results. They run on mDiskExecutor.
+     */
+
+    /**
+     * Replaces the temporary id of a geofavorite created offline with the one assigned by the server
+     */
+    void onGeofavoriteCreated(int localId, Geofavorite created) {
+        synchronized (mLocalIdRemap) {
+            mLocalIdRemap.put(localId, created.getId());
+        }
+        // Created after the server answered the sync in progress: the response cannot contain it
+        if (mSyncSeenIds != null)
+            mSyncSeenIds.put(created.getId(), 0);
+
+        Geofavorite local = mDataset.get(localId);
+        if (local == null)
+            // Deleted meanwhile: the deletion is queued with the new id
+            return;
+
+        mDataset.remove(localId);
+        mDatabase.deleteGeofavorite(localId);
+        Geofavorite saved = created;
+        if (mOutbox.hasPendingChanges(created.getId())) {
+            // Edited while being created: keep the local version
+            saved = new Geofavorite(local);
+            saved.setId(created.getId());
+        }
+        mDataset.put(saved);
+        mDatabase.upsertGeofavorite(saved);
+        publish();
+    }
+
+    /**
+     * Stores the geofavorite as returned by the server, e.g. with the new modification date
+     */
+    void onGeofavoriteUpdated(Geofavorite updated) {
+        if (!mDataset.contains(updated.getId()))
+            return;
+
+        mDataset.put(updated);
+        mDatabase.upsertGeofavorite(updated);
+        publish();
+    }
+
+    /**
+     * The server refused a change: the local version can no longer be trusted,
+     * reconcile it with a full sync
+     */
+    void onGeofavoriteChangeRejected(int favoriteId) {
+        mLastFullSync = 0;
+        mDatabase.setSyncState(GeofavoriteDatabase.SYNC_LAST_FULL_SYNC, 0);
+        updateGeofavorites(true);
+    }
+
+    /**
+     * Publishes a snapshot of the dataset, if it changed. Runs on mDiskExecutor.
+     */
+    private void publish() {
+        if (!mDataset.hasChanges())
+            return;
+        GeofavoriteSnapshot previous = mSnapshot;
+        mSnapshot = mDataset.build();
+        // Observers get the snapshot first: searches run before the indexes below reflect it scan it instead
+        mGeofavorites.postValue(mSnapshot);
+
+        // Rebuilt from the snapshot columns after a reset, so that a snapshot loaded from the file stays unmaterialized
+        mSearchIndex.apply(previous, mSnapshot);
+        mFuzzyIndex.apply(previous, mSnapshot);
+        // The table and the spatial index of the snapshot are not built here: a sync publishes every
+        // chunk, and only the snapshots that are searched need them (see GeofavoritesSearch)
+        mCategoryIndex.apply(previous, mSnapshot);
+        if (mCategoryIndex.hasChanges())
+            mCategories.postValue(mCategoryIndex.publish());
+    }
+
+    /**
+     * Writes the published snapshot to the snapshot file, if the database changed since it was written.
+     * The snapshot must reflect the database content. Runs on mDiskExecutor.
+     */
+    private void writeSnapshotFile() {
+        long dataVersion = mDatabase.getSyncState(GeofavoriteDatabase.SYNC_DATA_VERSION);
+        if (dataVersion == mSnapshotFileVersion)
+            return;
+        try {
+            GeofavoriteSnapshotFile.write(mSnapshotFile, mSnapshot, dataVersion);
+            mSnapshotFileVersion = dataVersion;
+        } catch (IOException e) {
+            Log.w(TAG, "Unable to write the snapshot file: " + e);
+        }
+    }
+
+    /**
+     * @return true if the id has been assigned by the server to a geofavorite created offline
+     */
+    boolean isCreatedId(int id) {
+        boolean[] found = {false};
+        synchronized (mLocalIdRemap) {
+            mLocalIdRemap.forEach((localId, serverId) -> {
+                if (serverId == id)
+                    found[0] = true;
+            });
+        }
+        return found[0];
+    }
+
+    /**
+     * @return the id assigned by the server if the given one is the temporary id of a geofavorite created offline
+     */
+    private int resolveId(int id) {
+        if (id >= 0)
+            return id;
+        synchronized (mLocalIdRemap) {
+            int remapped = mLocalIdRemap.get(id);
+            return remapped != NO_ID ? remapped : id;
+        }
+    }
+
+    /**
+     * Runs a dataset/database task, unless the repository has been closed in the meantime
+     */
+    private void runOnDisk(Runnable task) {
+        mDiskExecutor.execute(() -> runDiskTask(task));
+    }
+
+    @Nullable
+    String getAccountName() {
+        return mAccountName;
+    }
+
+    /**
+     * Like runOnDisk(), but blocks until the task has run
+     * @return false if the task was skipped because the repository has been closed
+     */
+    boolean runOnDiskAndWait(Runnable task) {
+        try {
+            mDiskExecutor.submit(() -> runDiskTask(task)).get();
+            return !mClosed;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    private void runDiskTask(Runnable task) {
+        if (mClosed)
+            return;
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Local database error: " + e);
+        }
+    }
+
+    private static ExecutorService newSerialExecutor() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    @Nullable
+    private static String getAccountName(Context context) {
+        try {
+            return SingleAccountHelper.getCurrentSingleSignOnAccount(context).name;
+        } catch (NextcloudFilesAppAccountNotFoundException | NoCurrentAccountSelectedException e) {
+            Log.d(TAG, "No current account: " + e);
+            return null;
         }
-        mCategories.postValue(categories);
     }
 
 }
@@ -0,0 +1,265 @@
+package com.nickgirga.nextcloudmapsgeofavorites.repository;
+
+import android.content.Context;
+import android.util.Log;
+
+import androidx.annotation.Nullable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteColumns;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteSnapshot;
+
+/**
+ * Columnar binary copy of the favorites table, memory mapped at startup so that the first snapshot
+ * can be published without querying the database nor decoding every row: geofavorites are only
+ * materialized when read (see GeofavoriteSnapshot.RowSource).
+ * The file records the database data version it was written from, and is ignored when they differ.
+ *
+ * Layout (big endian):
+ * header: magic, format version, data version (long), row count, string count, string bytes, padding
+ * columns: date modified (long[]), date created (long[]), lat (double[]), lng (double[]), id (int[]),
+ * name, category, comment (int[] of string indexes, -1 for null)
+ * string pool: byte offsets (int[string count + 1]), UTF-8 bytes. Each distinct string is stored once.
+ */
+public class GeofavoriteSnapshotFile implements GeofavoriteSnapshot.RowSource {
+    private static final String TAG = "GeofavoriteSnapshotFile";
+    private static final int MAGIC = 0x47465331; // "GFS1"
+    private static final int FORMAT_VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int NO_STRING = -1;
+
+    private final ByteBuffer mBuffer;
+    private final int mRowCount;
+    private final int mDateModifiedOffset;
+    private final int mDateCreatedOffset;
+    private final int mLatOffset;
+    private final int mLngOffset;
+    private final int mIdOffset;
+    private final int mNameOffset;
+    private final int mCategoryOffset;
+    private final int mCommentOffset;
+    private final int mStringOffsetsOffset;
+    private final int mStringBytesOffset;
+    // Strings decoded so far, by index: each one is decoded once and shared by all its rows
+    private final String[] mStrings;
+
+    private GeofavoriteSnapshotFile(ByteBuffer buffer, int rowCount, int stringCount) {
+        this.mBuffer = buffer;
+        this.mRowCount = rowCount;
+        this.mDateModifiedOffset = HEADER_SIZE;
+        this.mDateCreatedOffset = mDateModifiedOffset + rowCount * 8;
+        this.mLatOffset = mDateCreatedOffset + rowCount * 8;
+        this.mLngOffset = mLatOffset + rowCount * 8;
+        this.mIdOffset = mLngOffset + rowCount * 8;
+        this.mNameOffset = mIdOffset + rowCount * 4;
+        this.mCategoryOffset = mNameOffset + rowCount * 4;
+        this.mCommentOffset = mCategoryOffset + rowCount * 4;
+        this.mStringOffsetsOffset = mCommentOffset + rowCount * 4;
+        this.mStringBytesOffset = mStringOffsetsOffset + (stringCount + 1) * 4;
+        this.mStrings = new String[stringCount];
+    }
+
+    public static File getFile(Context context, @Nullable String accountName) {
+        return new File(context.getCacheDir(), GeofavoriteDatabase.databaseName(accountName) + ".snapshot");
+    }
+
+    /**
+     * Maps the file, if it exists and has been written from the given data version
+     * @return null if the file is missing, outdated or corrupted
+     */
+    @Nullable
+    public static GeofavoriteSnapshotFile open(File file, long dataVersion) {
+        if (!file.exists())
+            return null;
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r"); FileChannel channel = raf.getChannel()) {
+            // The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION)
+                return null;
+            if (buffer.getLong(8) != dataVersion)
+                return null;
+
+            int rowCount = buffer.getInt(16);
+            int stringCount = buffer.getInt(20);
+            int stringBytes = buffer.getInt(24);
+            long expectedSize = HEADER_SIZE + rowCount * 48L + (stringCount + 1) * 4L + stringBytes;
+            if (rowCount < 0 || stringCount < 0 || stringBytes < 0 || expectedSize != buffer.capacity())
+                return null;
+            return new GeofavoriteSnapshotFile(buffer, rowCount, stringCount);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Unable to open " + file + ": " + e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the geofavorites to the file, replacing it atomically. Reads their columns only, so that
+     * the rows of a snapshot loaded from a previous file are copied without being materialized.
+     */
+    public static void write(File file, GeofavoriteColumns geofavs, long dataVersion) throws IOException {
+        int n = geofavs.size();
+        HashMap<String, Integer> stringIndexes = new HashMap<>();
+        List<byte[]> strings = new ArrayList<>();
+        int[] names = new int[n];
+        int[] categories = new int[n];
+        int[] comments = new int[n];
+        int stringBytes = 0;
+        for (int i = 0; i < n; i++) {
+            String[] values = {geofavs.getName(i), geofavs.getCategory(i), geofavs.getComment(i)};
+            int[][] columns = {names, categories, comments};
+            for (int c = 0; c < values.length; c++) {
+                if (values[c] == null) {
+                    columns[c][i] = NO_STRING;
+                    continue;
+                }
+                Integer index = stringIndexes.get(values[c]);
+                if (index == null) {
+                    index = strings.size();
+                    byte[] bytes = values[c].getBytes(StandardCharsets.UTF_8);
+                    strings.add(bytes);
+                    stringBytes += bytes.length;
+                    stringIndexes.put(values[c], index);
+                }
+                columns[c][i] = index;
+            }
+        }
+
+        File tmp = new File(file.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(dataVersion);
+            out.writeInt(n);
+            out.writeInt(strings.size());
+            out.writeInt(stringBytes);
+            out.writeInt(0);
+
+            for (int i = 0; i < n; i++)
+                out.writeLong(geofavs.getDateModified(i));
+            for (int i = 0; i < n; i++)
+                out.writeLong(geofavs.getDateCreated(i));
+            for (int i = 0; i < n; i++)
+                out.writeDouble(geofavs.getLat(i));
+            for (int i = 0; i < n; i++)
+                out.writeDouble(geofavs.getLng(i));
+            for (int i = 0; i < n; i++)
+                out.writeInt(geofavs.getId(i));
+            for (int[] column : new int[][]{names, categories, comments}) {
+                for (int index : column)
+                    out.writeInt(index);
+            }
+
+            int offset = 0;
+            for (byte[] bytes : strings) {
+                out.writeInt(offset);
+                offset += bytes.length;
+            }
+            out.writeInt(offset);
+            for (byte[] bytes : strings)
+                out.write(bytes);
+        }
+        if (!tmp.renameTo(file)) {
+            tmp.delete();
+            throw new IOException("Unable to replace " + file);
+        }
+    }
+
+    @Override
+    public int size() {
+        return mRowCount;
+    }
+
+    @Override
+    public int getId(int row) {
+        return mBuffer.getInt(mIdOffset + row * 4);
+    }
+
+    @Override
+    public long getDateModified(int row) {
+        return mBuffer.getLong(mDateModifiedOffset + row * 8);
+    }
+
+    @Override
+    public long getDateCreated(int row) {
+        return mBuffer.getLong(mDateCreatedOffset + row * 8);
+    }
+
+    @Override
+    public double getLat(int row) {
+        return mBuffer.getDouble(mLatOffset + row * 8);
+    }
+
+    @Override
+    public double getLng(int row) {
+        return mBuffer.getDouble(mLngOffset + row * 8);
+    }
+
+    @Nullable
+    @Override
+    public String getName(int row) {
+        return getString(mBuffer.getInt(mNameOffset + row * 4));
+    }
+
+    @Nullable
+    @Override
+    public String getCategory(int row) {
+        return getString(mBuffer.getInt(mCategoryOffset + row * 4));
+    }
+
+    @Nullable
+    @Override
+    public String getComment(int row) {
+        return getString(mBuffer.getInt(mCommentOffset + row * 4));
+    }
+
+    @Override
+    public Geofavorite materialize(int row) {
+        Geofavorite g = new Geofavorite();
+        g.setId(getId(row));
+        String name = getName(row);
+        if (name != null)
+            g.setName(name);
+        g.setDateModified(getDateModified(row));
+        g.setDateCreated(getDateCreated(row));
+        g.setLat(getLat(row));
+        g.setLng(getLng(row));
+        g.setCategory(getCategory(row));
+        g.setComment(getComment(row));
+        return g;
+    }
+
+    @Nullable
+    private String getString(int index) {
+        if (index == NO_STRING)
+            return null;
+
+        // Racing threads may decode the same string twice, which is harmless
+        String s = mStrings[index];
+        if (s == null) {
+            int start = mBuffer.getInt(mStringOffsetsOffset + index * 4);
+            int end = mBuffer.getInt(mStringOffsetsOffset + (index + 1) * 4);
+            byte[] bytes = new byte[end - start];
+            ByteBuffer view = mBuffer.duplicate();
+            view.position(mStringBytesOffset + start);
+            view.get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+            mStrings[index] = s;
+        }
+        return s;
+    }
+}
@@ -0,0 +1,120 @@
+package com.nickgirga.nextcloudmapsgeofavorites.utils;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
+import android.util.LruCache;
+
+import androidx.annotation.DrawableRes;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.appcompat.content.res.AppCompatResources;
+import androidx.core.graphics.drawable.DrawableCompat;
+
+import com.nickgirga.nextcloudmapsgeofavorites.R;
+import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+
+/**
+ * Category colored icons shared by the map, the list, the info windows and the category picker.
+ * Pins are rasterized once per drawable, color and screen density, and kept in an LRU cache bounded
+ * by the size of the bitmaps. Label backgrounds, which stretch with their view, are kept as tinted
+ * drawable states. Both caches are released when the system runs low on memory.
+ * Main thread only.
+ */
+public final class CategoryIcons {
+    private static final int MAX_PIN_BYTES = 4 * 1024 * 1024;
+    private static final int MAX_BACKGROUNDS = 64;
+
+    private static final LruCache<String, Bitmap> sPins = new LruCache<String, Bitmap>(MAX_PIN_BYTES) {
+        @Override
+        protected int sizeOf(String key, Bitmap value) {
+            return value.getByteCount();
+        }
+    };
+    private static final LruCache<String, Drawable.ConstantState> sBackgrounds = new LruCache<>(MAX_BACKGROUNDS);
+    private static boolean sRegistered = false;
+
+    private CategoryIcons() {
+    }
+
+    /**
+     * @return the color of the category, the brand color for the default category
+     */
+    public static int color(Context context, @Nullable String category) {
+        int color = Geofavorite.categoryColorFromName(category);
+        return color == 0 ? context.getColor(R.color.defaultBrand) : color;
+    }
+
+    /**
+     * @return the drawable tinted with the color, rasterized at its intrinsic size. Shared: must not
+     * be recycled nor modified.
+     */
+    public static Bitmap pinBitmap(Context context, @DrawableRes int res, int color) {
+        register(context);
+        String key = res + ":" + color + ":" + context.getResources().getDisplayMetrics().densityDpi;
+        Bitmap bitmap = sPins.get(key);
+        if (bitmap == null) {
+            Drawable icon = DrawableCompat.wrap(AppCompatResources.getDrawable(context, res)).mutate();
+            DrawableCompat.setTint(icon, color);
+            bitmap = Bitmap.createBitmap(icon.getIntrinsicWidth(), icon.getIntrinsicHeight(), Bitmap.Config.ARGB_8888);
+            icon.setBounds(0, 0, bitmap.getWidth(), bitmap.getHeight());
+            icon.draw(new Canvas(bitmap));
+            sPins.put(key, bitmap);
+        }
+        return bitmap;
+    }
+
+    public static Drawable pin(Context context, @DrawableRes int res, int color) {
+        return new BitmapDrawable(context.getResources(), pinBitmap(context, res, color));
+    }
+
+    /**
+     * @return a new instance of the drawable tinted with the color, sharing its state with the other
+     * instances of the same tint
+     */
+    public static Drawable background(Context context, @DrawableRes int res, int color) {
+        register(context);
+        String key = res + ":" + color + ":" + context.getResources().getDisplayMetrics().densityDpi;
+        Drawable.ConstantState state = sBackgrounds.get(key);
+        if (state == null) {
+            Drawable background = AppCompatResources.getDrawable(context, res).mutate();
+            background.setTint(color);
+            state = background.getConstantState();
+            if (state == null)
+                return background;
+            sBackgrounds.put(key, state);
+        }
+        return state.newDrawable(context.getResources());
+    }
+
+    private static void register(Context context) {
+        if (sRegistered)
+            return;
+        sRegistered = true;
+        context.getApplicationContext().registerComponentCallbacks(new ComponentCallbacks2() {
+            @Override
+            public void onTrimMemory(int level) {
+                // Icons are quick to rebuild, and the ones in use are kept by their views.
+                // UI_HIDDEN alone is not memory pressure.
+                if (level >= TRIM_MEMORY_BACKGROUND || (level >= TRIM_MEMORY_RUNNING_LOW && level < TRIM_MEMORY_UI_HIDDEN)) {
+                    sPins.evictAll();
+                    sBackgrounds.evictAll();
+                }
+            }
+
+            @Override
+            public void onConfigurationChanged(@NonNull Configuration newConfig) {
+            }
+
+            @Override
+            public void onLowMemory() {
+                sPins.evictAll();
+                sBackgrounds.evictAll();
+            }
+        });
+    }
+}
@@ -0,0 +1,215 @@
+package com.nickgirga.nextcloudmapsgeofavorites.utils;
+
+import androidx.annotation.Nullable;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Immutable combination of filters applied by GeofavoritesFilter: a geofavorite matches if it
+ * satisfies all the criteria set. Dates are in seconds, like the Geofavorite ones, and ranges are inclusive.
+ */
+public final class FilterCriteria {
+    public static final FilterCriteria NONE = new FilterCriteria();
+
+    private String text = "";
+    // Normalized text (see SearchKey)
+    private String query = "";
+    private Set<String> categories = Collections.emptySet();
+    // Bounding box, unset if NaN. minLng > maxLng for boxes crossing the antimeridian.
+    private double minLat = Double.NaN, minLng = Double.NaN, maxLat = Double.NaN, maxLng = Double.NaN;
+    // Circle, unset if radius is NaN
+    private double centerLat, centerLng, radiusKm = Double.NaN;
+    private long createdFrom = Long.MIN_VALUE, createdTo = Long.MAX_VALUE;
+    private long modifiedFrom = Long.MIN_VALUE, modifiedTo = Long.MAX_VALUE;
+
+    private FilterCriteria() {
+    }
+
+    private FilterCriteria copy() {
+        FilterCriteria c = new FilterCriteria();
+        c.text = text;
+        c.query = query;
+        c.categories = categories;
+        c.minLat = minLat;
+        c.minLng = minLng;
+        c.maxLat = maxLat;
+        c.maxLng = maxLng;
+        c.centerLat = centerLat;
+        c.centerLng = centerLng;
+        c.radiusKm = radiusKm;
+        c.createdFrom = createdFrom;
+        c.createdTo = createdTo;
+        c.modifiedFrom = modifiedFrom;
+        c.modifiedTo = modifiedTo;
+        return c;
+    }
+
+    /**
+     * @param text searched in names and comments, ignoring case and accents. Empty to match everything.
+     */
+    public FilterCriteria withText(@Nullable String text) {
+        FilterCriteria c = copy();
+        c.text = text != null ? text : "";
+        c.query = SearchKey.normalize(c.text);
+        return c;
+    }
+
+    /**
+     * @param categories any of which the geofavorites must belong to. Empty to match everything.
+     */
+    public FilterCriteria withCategories(Collection<String> categories) {
+        FilterCriteria c = copy();
+        c.categories = categories.isEmpty() ? Collections.emptySet()
+                : Collections.unmodifiableSet(new HashSet<>(categories));
+        return c;
+    }
+
+    public FilterCriteria withBoundingBox(double minLat, double minLng, double maxLat, double maxLng) {
+        FilterCriteria c = copy();
+        c.minLat = minLat;
+        c.minLng = minLng;
+        c.maxLat = maxLat;
+        c.maxLng = maxLng;
+        return c;
+    }
+
+    public FilterCriteria withRadius(double centerLat, double centerLng, double radiusKm) {
+        FilterCriteria c = copy();
+        c.centerLat = centerLat;
+        c.centerLng = centerLng;
+        c.radiusKm = radiusKm;
+        return c;
+    }
+
+    /**
+     * Removes the bounding box and radius criteria
+     */
+    public FilterCriteria withoutArea() {
+        return withBoundingBox(Double.NaN, Double.NaN, Double.NaN, Double.NaN).withRadius(0, 0, Double.NaN);
+    }
+
+    public FilterCriteria withDateCreated(long from, long to) {
+        FilterCriteria c = copy();
+        c.createdFrom = from;
+        c.createdTo = to;
+        return c;
+    }
+
+    public FilterCriteria withDateModified(long from, long to) {
+        FilterCriteria c = copy();
+        c.modifiedFrom = from;
+        c.modifiedTo = to;
+        return c;
+    }
+
+    public String getText() {
+        return text;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public Set<String> getCategories() {
+        return categories;
+    }
+
+    public boolean hasText() {
+        return !query.isEmpty();
+    }
+
+    public boolean hasCategories() {
+        return !categories.isEmpty();
+    }
+
+    public boolean hasBoundingBox() {
+        return !Double.isNaN(minLat) && !Double.isNaN(minLng) && !Double.isNaN(maxLat) && !Double.isNaN(maxLng);
+    }
+
+    public boolean hasRadius() {
+        return !Double.isNaN(radiusKm);
+    }
+
+    public boolean hasDateCreated() {
+        return createdFrom != Long.MIN_VALUE || createdTo != Long.MAX_VALUE;
+    }
+
+    public boolean hasDateModified() {
+        return modifiedFrom != Long.MIN_VALUE || modifiedTo != Long.MAX_VALUE;
+    }
+
+    public boolean isEmpty() {
+        return !hasText() && !hasCategories() && !hasBoundingBox() && !hasRadius()
+                && !hasDateCreated() && !hasDateModified();
+    }
+
+    public double getMinLat() {
+        return minLat;
+    }
+
+    public double getMinLng() {
+        return minLng;
+    }
+
+    public double getMaxLat() {
+        return maxLat;
+    }
+
+    public double getMaxLng() {
+        return maxLng;
+    }
+
+    public double getCenterLat() {
+        return centerLat;
+    }
+
+    public double getCenterLng() {
+        return centerLng;
+    }
+
+    public double getRadiusKm() {
+        return radiusKm;
+    }
+
+    public long getCreatedFrom() {
+        return createdFrom;
+    }
+
+    public long getCreatedTo() {
+        return createdTo;
+    }
+
+    public long getModifiedFrom() {
+        return modifiedFrom;
+    }
+
+    public long getModifiedTo() {
+        return modifiedTo;
+    }
+
+    /**
+     * @return true if whatever matches these criteria also matches the given ones, so that only
+     * their results need to be filtered: the text extends the previous one, everything else is the same
+     */
+    public boolean narrows(@Nullable FilterCriteria previous) {
+        return previous != null && !previous.isEmpty() && query.contains(previous.query)
+                && previous.withText(text).sameAs(this);
+    }
+
+    private boolean sameAs(FilterCriteria other) {
+        return query.equals(other.query) && categories.equals(other.categories)
+                && same(minLat, other.minLat) && same(minLng, other.minLng)
+                && same(maxLat, other.maxLat) && same(maxLng, other.maxLng)
+                && same(radiusKm, other.radiusKm)
+                && (!hasRadius() || (centerLat == other.centerLat && centerLng == other.centerLng))
+                && createdFrom == other.createdFrom && createdTo == other.createdTo
+                && modifiedFrom == other.modifiedFrom && modifiedTo == other.modifiedTo;
+    }
+
+    private static boolean same(double d0, double d1) {
+        return Double.compare(d0, d1) == 0;
+    }
+}
@@ -0,0 +1,322 @@
+package com.nickgirga.nextcloudmapsgeofavorites.utils;
+
+import androidx.annotation.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteSelection;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteSnapshot;
+
+/**
+ * Typo tolerant search over the words of the geofavorites names: each word of the query matches
+ * the name words within a small edit distance, found with a BK-tree of the distinct words so that
+ * only a fraction of them is compared. Kept up to date from the changes between consecutive snapshots,
+ * like TrigramIndex, and searched from any thread.
+ */
+public class FuzzyIndex {
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    // word -> set of ids (values are unused)
+    private HashMap<String, IntIntMap> mWordIds = new HashMap<>();
+    // Contains all the words, including the ones no longer used, until it is rebuilt
+    private BkTree mTree = new BkTree();
+    private int mUnusedWords = 0;
+    private long mVersion = -1;
+
+    /**
+     * Applies the differences between the two snapshots, or rebuilds the index if they are not
+     * consecutive or the index does not reflect the previous one. Must not be called concurrently.
+     */
+    public void apply(GeofavoriteSnapshot previous, GeofavoriteSnapshot current) {
+        if (!current.follows(previous) || mVersion != previous.getVersion()) {
+            // Read from the columns, not to materialize the geofavorites of a snapshot loaded from a file
+            HashMap<String, IntIntMap> wordIds = new HashMap<>();
+            for (int row = 0; row < current.size(); row++)
+                add(wordIds, null, current.getId(row), current.getName(row));
+            BkTree tree = new BkTree();
+            for (String word : wordIds.keySet())
+                tree.add(word);
+            mLock.writeLock().lock();
+            try {
+                mWordIds = wordIds;
+                mTree = tree;
+                mUnusedWords = 0;
+                mVersion = current.getVersion();
+            } finally {
+                mLock.writeLock().unlock();
+            }
+            return;
+        }
+
+        GeofavoriteSnapshot.Change change = current.getChange();
+        mLock.writeLock().lock();
+        try {
+            for (int id : change.removed)
+                remove(previous.findById(id));
+            for (int id : change.updated) {
+                remove(previous.findById(id));
+                add(mWordIds, mTree, current.findById(id));
+            }
+            for (int id : change.added)
+                add(mWordIds, mTree, current.findById(id));
+
+            // Words cannot be removed from a BK-tree
+            if (mUnusedWords > mWordIds.size()) {
+                mTree = new BkTree();
+                for (String word : mWordIds.keySet())
+                    mTree.add(word);
+                mUnusedWords = 0;
+            }
+            mVersion = current.getVersion();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param query normalized text (see SearchKey.normalize())
+     * @param rows rows of the snapshot the results are restricted to, or null for all of them
+     * @param limit maximum number of results
+     * @return the geofavorites of the snapshot whose name has a close match for each word of the query,
+     * best first: the lowest total edit distance, then the most recently modified. Null if the index
+     * does not reflect the snapshot.
+     */
+    @Nullable
+    public GeofavoriteSelection search(GeofavoriteSnapshot snapshot, String query, @Nullable BitSet rows, int limit) {
+        List<String> words = SearchKey.words(query);
+        if (words.isEmpty() || limit <= 0)
+            return new GeofavoriteSelection(snapshot, new int[0]);
+
+        // id -> total distance of the ids matching all the words so far
+        IntIntMap distances = null;
+        mLock.readLock().lock();
+        try {
+            if (mVersion != snapshot.getVersion())
+                return null;
+
+            for (String word : words) {
+                IntIntMap wordDistances = new IntIntMap(16, -1);
+                mTree.search(word, maxDistance(word), (match, distance) -> {
+                    IntIntMap ids = mWordIds.get(match);
+                    if (ids == null)
+                        return;
+                    ids.forEach((id, unused) -> {
+                        int best = wordDistances.get(id);
+                        if (best < 0 || distance < best)
+                            wordDistances.put(id, distance);
+                    });
+                });
+
+                if (distances == null) {
+                    distances = wordDistances;
+                } else {
+                    IntIntMap merged = new IntIntMap(distances.size(), -1);
+                    IntIntMap previous = distances;
+                    previous.forEach((id, distance) -> {
+                        int wordDistance = wordDistances.get(id);
+                        if (wordDistance >= 0)
+                            merged.put(id, distance + wordDistance);
+                    });
+                    distances = merged;
+                }
+                if (distances.size() == 0)
+                    return new GeofavoriteSelection(snapshot, new int[0]);
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+
+        // Bounded heap of the best results, the worst one on top
+        PriorityQueue<Match> best = new PriorityQueue<>(limit, (m0, m1) -> m1.compareTo(m0));
+        distances.forEach((id, distance) -> {
+            int row = snapshot.indexOfId(id);
+            if (row < 0 || (rows != null && !rows.get(row)))
+                return;
+            Match match = new Match(row, snapshot.getDateModified(row), distance);
+            if (best.size() < limit) {
+                best.add(match);
+            } else if (match.compareTo(best.peek()) < 0) {
+                best.poll();
+                best.add(match);
+            }
+        });
+
+        List<Match> matches = new ArrayList<>(best);
+        Collections.sort(matches);
+        int[] selected = new int[matches.size()];
+        for (int i = 0; i < selected.length; i++)
+            selected[i] = matches.get(i).row;
+        return GeofavoriteSelection.ranked(snapshot, selected);
+    }
+
+    private void remove(@Nullable Geofavorite g) {
+        if (g == null)
+            return;
+        for (String word : SearchKey.words(SearchKey.normalize(g.getName()))) {
+            IntIntMap ids = mWordIds.get(word);
+            if (ids != null) {
+                ids.remove(g.getId());
+                if (ids.size() == 0) {
+                    mWordIds.remove(word);
+                    mUnusedWords++;
+                }
+            }
+        }
+    }
+
+    private void add(Map<String, IntIntMap> wordIds, @Nullable BkTree tree, @Nullable Geofavorite g) {
+        if (g != null)
+            add(wordIds, tree, g.getId(), g.getName());
+    }
+
+    private void add(Map<String, IntIntMap> wordIds, @Nullable BkTree tree, int id, @Nullable String name) {
+        for (String word : SearchKey.words(SearchKey.normalize(name))) {
+            IntIntMap ids = wordIds.get(word);
+            if (ids == null) {
+                ids = new IntIntMap(4, 0);
+                wordIds.put(word, ids);
+                // A word back in use is still in the tree
+                if (tree != null && !tree.add(word))
+                    mUnusedWords--;
+            }
+            ids.put(id, 1);
+        }
+    }
+
+    /**
+     * Longer words tolerate more typos
+     */
+    private static int maxDistance(String word) {
+        if (word.length() <= 2)
+            return 0;
+        return word.length() <= 5 ? 1 : 2;
+    }
+
+    private static int editDistance(String s0, String s1) {
+        int[] previous = new int[s1.length() + 1];
+        int[] current = new int[s1.length() + 1];
+        for (int j = 0; j <= s1.length(); j++)
+            previous[j] = j;
+        for (int i = 1; i <= s0.length(); i++) {
+            current[0] = i;
+            for (int j = 1; j <= s1.length(); j++) {
+                int substitution = previous[j - 1] + (s0.charAt(i - 1) == s1.charAt(j - 1) ? 0 : 1);
+                current[j] = Math.min(substitution, Math.min(previous[j], current[j - 1]) + 1);
+            }
+            int[] swap = previous;
+            previous = current;
+            current = swap;
+        }
+        return previous[s1.length()];
+    }
+
+    private static class Match implements Comparable<Match> {
+        final int row;
+        final long dateModified;
+        final int distance;
+
+        Match(int row, long dateModified, int distance) {
+            this.row = row;
+            this.dateModified = dateModified;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(Match other) {
+            if (distance != other.distance)
+                return Integer.compare(distance, other.distance);
+            return Long.compare(other.dateModified, dateModified);
+        }
+    }
+
+    private interface MatchConsumer {
+        void accept(String word, int distance);
+    }
+
+    /**
+     * Metric tree of words: the children of a node are keyed by their distance from it, so that by the
+     * triangle inequality a search within d of a word at distance x from a node only visits the
+     * children keyed x - d to x + d.
+     */
+    private static class BkTree {
+        private Node mRoot;
+
+        /**
+         * @return false if the word was already in the tree
+         */
+        boolean add(String word) {
+            if (mRoot == null) {
+                mRoot = new Node(word);
+                return true;
+            }
+            Node node = mRoot;
+            while (true) {
+                int distance = editDistance(word, node.word);
+                if (distance == 0)
+                    return false;
+                Node child = node.child(distance);
+                if (child == null) {
+                    node.addChild(distance, new Node(word));
+                    return true;
+                }
+                node = child;
+            }
+        }
+
+        void search(String word, int maxDistance, MatchConsumer consumer) {
+            if (mRoot == null)
+                return;
+            List<Node> pending = new ArrayList<>();
+            pending.add(mRoot);
+            while (!pending.isEmpty()) {
+                Node node = pending.remove(pending.size() - 1);
+                int distance = editDistance(word, node.word);
+                if (distance <= maxDistance)
+                    consumer.accept(node.word, distance);
+                for (int i = 0; i < node.childCount; i++) {
+                    if (Math.abs(node.childDistances[i] - distance) <= maxDistance)
+                        pending.add(node.children[i]);
+                }
+            }
+        }
+
+        private static class Node {
+            final String word;
+            int[] childDistances = new int[0];
+            Node[] children = new Node[0];
+            int childCount = 0;
+
+            Node(String word) {
+                this.word = word;
+            }
+
+            @Nullable
+            Node child(int distance) {
+                for (int i = 0; i < childCount; i++) {
+                    if (childDistances[i] == distance)
+                        return children[i];
+                }
+                return null;
+            }
+
+            void addChild(int distance, Node child) {
+                if (childCount == children.length) {
+                    int capacity = Math.max(2, childCount * 2);
+                    childDistances = Arrays.copyOf(childDistances, capacity);
+                    children = Arrays.copyOf(children, capacity);
+                }
+                childDistances[childCount] = distance;
+                children[childCount] = child;
+                childCount++;
+            }
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package com.nickgirga.nextcloudmapsgeofavorites.utils;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.nickgirga.nextcloudmapsgeofavorites.model.ClusterIndex;
+import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteSelection;
+
+/**
+ * Builds the ClusterIndex of each dataset shown on the map in background. A newer dataset cancels
+ * the build in progress, so only the index of the last one is delivered.
+ */
+public class GeofavoritesClustering {
+    private final ExecutorService mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final MutableLiveData<ClusterIndex> mClusters = new MutableLiveData<>();
+
+    // Main thread only
+    private int mGeneration = 0;
+    @Nullable
+    private CancellationSignal mRunning;
+    @Nullable
+    private List<Geofavorite> mLastRequested;
+
+    public GeofavoritesClustering() {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        this.mExecutor = executor;
+    }
+
+    /**
+     * @return the index of the last dataset, delivered on the main thread
+     */
+    public LiveData<ClusterIndex> getClusters() {
+        return mClusters;
+    }
+
+    /**
+     * Builds the index of the geofavorites, replacing any build in progress
+     */
+    @MainThread
+    public void cluster(List<Geofavorite> geofavs) {
+        // Same dataset delivered again, e.g. when the view is recreated
+        if (geofavs == mLastRequested)
+            return;
+        mLastRequested = geofavs;
+
+        int generation = ++mGeneration;
+        if (mRunning != null)
+            mRunning.cancel();
+        CancellationSignal signal = new CancellationSignal();
+        mRunning = signal;
+        mExecutor.execute(() -> {
+            ClusterIndex clusters;
+            try {
+                clusters = ClusterIndex.of(GeofavoriteSelection.of(geofavs), signal);
+            } catch (OperationCanceledException e) {
+                return;
+            }
+            mMainHandler.post(() -> {
+                if (generation == mGeneration)
+                    mClusters.setValue(clusters);
+            });
+        });
+    }
+
+    @MainThread
+    public void shutdown() {
+        mGeneration++;
+        if (mRunning != null)
+            mRunning.cancel();
+        mExecutor.shutdownNow();
+    }
+}
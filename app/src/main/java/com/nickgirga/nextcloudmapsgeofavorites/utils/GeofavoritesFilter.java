@@ -1,47 +1,307 @@
 package com.nickgirga.nextcloudmapsgeofavorites.utils;
 
+import android.os.CancellationSignal;
+import android.os.OperationCanceledException;
+
+import androidx.annotation.Nullable;
+
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.List;
 
 import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteSelection;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteSnapshot;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteTable;
+import com.nickgirga.nextcloudmapsgeofavorites.model.SpatialIndex;
 
+/**
+ * Filters geofavorites on a combination of criteria (see FilterCriteria).
+ * Matching rows are kept in a bitset. Indexed criteria (categories, text candidates, and the area when
+ * filtering a snapshot) restrict it upfront, then each other criterion only tests the rows left by the
+ * previous ones: they are applied from the cheapest and most selective to the most expensive one,
+ * e.g. text matching last.
+ * Columns are read from the GeofavoriteTable, without touching the geofavorites except for text matching.
+ */
 public class GeofavoritesFilter {
+    private static final int CANCELLATION_CHECK_MASK = 255;
+    // Relative cost of testing a row
+    private static final int COST_COMPARE = 1;
+    private static final int COST_DISTANCE = 8;
+    private static final int COST_TEXT = 32;
+    // Same as Geofavorite, in kilometers
+    private static final double EARTH_RADIUS = 6371;
+    // Against rounding errors, in degrees
+    private static final double BOX_MARGIN = 1e-9;
+
     List<Geofavorite> items;
+    GeofavoriteTable table;
+    // Same as items, when it is a snapshot
+    GeofavoriteSnapshot snapshot;
+    // Search indexes of the snapshot, when available
+    TrigramIndex index;
+    FuzzyIndex fuzzyIndex;
     public GeofavoritesFilter(List<Geofavorite> items) {
         this.items = items;
+        this.table = GeofavoriteTable.of(items);
+    }
+
+    public GeofavoritesFilter(GeofavoriteSnapshot snapshot) {
+        this.items = snapshot;
+        this.snapshot = snapshot;
+        this.table = snapshot.getTable();
+    }
+
+    public GeofavoritesFilter(GeofavoriteSnapshot snapshot, TrigramIndex index) {
+        this(snapshot);
+        this.index = index;
+    }
+
+    public GeofavoritesFilter(GeofavoriteSnapshot snapshot, TrigramIndex index, FuzzyIndex fuzzyIndex) {
+        this(snapshot, index);
+        this.fuzzyIndex = fuzzyIndex;
     }
 
     public List<Geofavorite> byText(String text) {
-        List<Geofavorite> filteredGeofavorites = new ArrayList<>();
+        return filter(FilterCriteria.NONE.withText(text));
+    }
+
+    public List<Geofavorite> byCategory(String category) {
+        return filter(category == null ? FilterCriteria.NONE
+                : FilterCriteria.NONE.withCategories(Collections.singleton(category)));
+    }
 
-        if (text.isEmpty()) {
+    public List<Geofavorite> filter(FilterCriteria criteria) {
+        if (criteria.isEmpty())
             return items;
+        return select(match(criteria, null, null));
+    }
+
+    /**
+     * @param within rows to restrict the search to, e.g. the matches of criteria narrowed by these
+     * (see FilterCriteria.narrows()). Null for all of them.
+     * @param signal checked while filtering, to abort a search that is no longer needed
+     * @return the matching rows
+     * @throws OperationCanceledException if the signal is canceled
+     */
+    public BitSet match(FilterCriteria criteria, @Nullable BitSet within, @Nullable CancellationSignal signal) {
+        BitSet rows;
+        if (within != null) {
+            rows = (BitSet) within.clone();
         } else {
-            for (Geofavorite geofavorite : items) {
-                String query = text.toLowerCase();
-                if (geofavorite.getName() != null && geofavorite.getName().toLowerCase().contains(query)) {
-                    filteredGeofavorites.add(geofavorite);
-                } else if (geofavorite.getComment() != null && geofavorite.getComment().toLowerCase().contains(query)) {
-                    filteredGeofavorites.add(geofavorite);
+            rows = new BitSet(table.size());
+            rows.set(0, table.size());
+        }
+
+        List<Step> steps = new ArrayList<>();
+        int size = table.size();
+        if (criteria.hasText()) {
+            String query = criteria.getQuery();
+            int[] candidates = index != null && snapshot != null ? index.candidates(snapshot, query) : null;
+            int estimate = size;
+            if (candidates != null) {
+                // The index restricts the rows upfront, the candidates left still need to be checked
+                BitSet candidateRows = new BitSet(size);
+                for (int id : candidates) {
+                    int row = snapshot.indexOfId(id);
+                    if (row >= 0)
+                        candidateRows.set(row);
                 }
+                rows.and(candidateRows);
+                estimate = candidates.length;
+            }
+            steps.add(new Step(estimate, COST_TEXT, row -> items.get(row).getSearchKey().contains(query)));
+        }
+        if (criteria.hasCategories()) {
+            // Union of the rows of the categories, without testing each row
+            BitSet categoryRows = new BitSet(size);
+            for (String category : criteria.getCategories()) {
+                int categoryId = table.findCategoryId(category);
+                if (categoryId != GeofavoriteTable.NO_CATEGORY)
+                    table.addCategoryRows(categoryId, categoryRows);
             }
+            rows.and(categoryRows);
+        }
+        if (snapshot != null && (criteria.hasBoundingBox() || criteria.hasRadius())) {
+            // The spatial index finds the rows in the area without testing each row
+            SpatialIndex spatialIndex = snapshot.getSpatialIndex();
+            if (criteria.hasBoundingBox()) {
+                BitSet boxRows = new BitSet(size);
+                spatialIndex.addRowsInBox(criteria.getMinLat(), criteria.getMinLng(),
+                        criteria.getMaxLat(), criteria.getMaxLng(), boxRows);
+                rows.and(boxRows);
+            }
+            if (criteria.hasRadius()) {
+                BitSet radiusRows = new BitSet(size);
+                spatialIndex.addRowsInRadius(criteria.getCenterLat(), criteria.getCenterLng(),
+                        criteria.getRadiusKm(), radiusRows);
+                rows.and(radiusRows);
+            }
+        }
+        if (snapshot == null && criteria.hasBoundingBox()) {
+            double minLat = criteria.getMinLat(), maxLat = criteria.getMaxLat();
+            double minLng = criteria.getMinLng(), maxLng = criteria.getMaxLng();
+            boolean crossesAntimeridian = minLng > maxLng;
+            steps.add(new Step(size / 2, COST_COMPARE, row -> {
+                double lat = table.getLat(row), lng = table.getLng(row);
+                if (lat < minLat || lat > maxLat)
+                    return false;
+                return crossesAntimeridian ? lng >= minLng || lng <= maxLng : lng >= minLng && lng <= maxLng;
+            }));
+        }
+        if (snapshot == null && criteria.hasRadius()) {
+            double centerLat = criteria.getCenterLat(), centerLng = criteria.getCenterLng();
+            double radiusKm = criteria.getRadiusKm();
+            // Bounding box of the circle, to skip the distance computation for most of the rows.
+            // The longitude range is unbounded if the circle contains a pole.
+            double angularRadius = radiusKm / EARTH_RADIUS;
+            double latDelta = Math.toDegrees(angularRadius) + BOX_MARGIN;
+            double cosLat = Math.cos(Math.toRadians(centerLat));
+            double lngDelta = Math.sin(angularRadius) < cosLat && angularRadius < Math.PI / 2
+                    ? Math.toDegrees(Math.asin(Math.sin(angularRadius) / cosLat)) + BOX_MARGIN : 360;
+            steps.add(new Step(size / 2, COST_DISTANCE, row -> {
+                if (Math.abs(table.getLat(row) - centerLat) > latDelta)
+                    return false;
+                double lngDistance = Math.abs(table.getLng(row) - centerLng);
+                if (Math.min(lngDistance, 360 - lngDistance) > lngDelta)
+                    return false;
+                return table.distanceFrom(row, centerLat, centerLng) <= radiusKm;
+            }));
+        }
+        if (criteria.hasDateCreated()) {
+            long from = criteria.getCreatedFrom(), to = criteria.getCreatedTo();
+            steps.add(new Step(size / 2, COST_COMPARE, row -> {
+                long date = table.getDateCreated(row);
+                return date >= from && date <= to;
+            }));
         }
-        return filteredGeofavorites;
+        if (criteria.hasDateModified()) {
+            long from = criteria.getModifiedFrom(), to = criteria.getModifiedTo();
+            steps.add(new Step(size / 2, COST_COMPARE, row -> {
+                long date = table.getDateModified(row);
+                return date >= from && date <= to;
+            }));
+        }
+
+        Collections.sort(steps, (s0, s1) -> Long.compare(s0.score, s1.score));
+        int tested = 0;
+        for (Step step : steps) {
+            for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1)) {
+                if (signal != null && (tested++ & CANCELLATION_CHECK_MASK) == 0)
+                    signal.throwIfCanceled();
+                if (!step.test.test(row))
+                    rows.clear(row);
+            }
+        }
+        return rows;
     }
 
-    public List<Geofavorite> byCategory(String category) {
-        List<Geofavorite> filteredGeofavorites = new ArrayList<>();
+    /**
+     * Typo tolerant variant of the text criterion: the words of the text match the words of the names
+     * within a small edit distance (see FuzzyIndex). The other criteria apply as usual.
+     * @param limit maximum number of results
+     * @return the best matches first, or null if the fuzzy index is not available for the items
+     * @throws OperationCanceledException if the signal is canceled
+     */
+    @Nullable
+    public List<Geofavorite> fuzzy(FilterCriteria criteria, int limit, @Nullable CancellationSignal signal) {
+        if (fuzzyIndex == null || snapshot == null)
+            return null;
+        FilterCriteria others = criteria.withText(null);
+        BitSet rows = others.isEmpty() ? null : match(others, null, signal);
+        if (signal != null)
+            signal.throwIfCanceled();
+        return fuzzyIndex.search(snapshot, criteria.getQuery(), rows, limit);
+    }
 
-        if (category == null) {
-            return items;
-        } else {
-            for (Geofavorite geofavorite : items) {
-                if (geofavorite.getCategory().equals(category)) {
-                    filteredGeofavorites.add(geofavorite);
-                }
+    /**
+     * Full text variant of the text criterion, with the geofavorites found by a ranked search
+     * (see GeofavoriteDatabase.searchGeofavorites()). The other criteria apply as usual.
+     * @param ids ids of the geofavorites matching the text, best first
+     * @return the geofavorites of the ids in the items that match the other criteria, in the same order
+     * @throws OperationCanceledException if the signal is canceled
+     */
+    public List<Geofavorite> ranked(int[] ids, FilterCriteria criteria, @Nullable CancellationSignal signal) {
+        FilterCriteria others = criteria.withText(null);
+        BitSet rows = others.isEmpty() ? null : match(others, null, signal);
+        int[] selected = new int[ids.length];
+        int count = 0;
+        for (int id : ids) {
+            int row = snapshot != null ? snapshot.indexOfId(id) : indexOfId(id);
+            if (row >= 0 && (rows == null || rows.get(row)))
+                selected[count++] = row;
+        }
+
+        if (snapshot != null)
+            return GeofavoriteSelection.ranked(snapshot, Arrays.copyOf(selected, count));
+        List<Geofavorite> geofavs = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            geofavs.add(items.get(selected[i]));
+        return geofavs;
+    }
+
+    /**
+     * @param rows matching rows, see match()
+     * @param ids ids of the geofavorites found by a ranked search, best first
+     * @return the geofavorites of the rows, those with a ranked id first in the order of the ids,
+     * then the others in their order
+     */
+    public List<Geofavorite> ranked(BitSet rows, int[] ids) {
+        int[] selected = new int[rows.cardinality()];
+        int count = 0;
+        BitSet unranked = (BitSet) rows.clone();
+        for (int id : ids) {
+            int row = snapshot != null ? snapshot.indexOfId(id) : indexOfId(id);
+            if (row >= 0 && unranked.get(row)) {
+                unranked.clear(row);
+                selected[count++] = row;
             }
         }
-        return filteredGeofavorites;
+        for (int row = unranked.nextSetBit(0); row >= 0; row = unranked.nextSetBit(row + 1))
+            selected[count++] = row;
+
+        if (snapshot != null)
+            return GeofavoriteSelection.ranked(snapshot, selected);
+        List<Geofavorite> geofavs = new ArrayList<>(count);
+        for (int row : selected)
+            geofavs.add(items.get(row));
+        return geofavs;
+    }
+
+    private int indexOfId(int id) {
+        for (int row = 0; row < table.size(); row++) {
+            if (table.getId(row) == id)
+                return row;
+        }
+        return -1;
+    }
 
+    /**
+     * @return the geofavorites of the rows, in their order. A GeofavoriteSelection when filtering a snapshot.
+     */
+    public List<Geofavorite> select(BitSet rows) {
+        if (snapshot != null)
+            return GeofavoriteSelection.of(snapshot, rows);
+        List<Geofavorite> geofavs = new ArrayList<>(rows.cardinality());
+        for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1))
+            geofavs.add(items.get(row));
+        return geofavs;
+    }
+
+    private interface RowTest {
+        boolean test(int row);
+    }
+
+    private static class Step {
+        // Estimated matching rows times the cost of a test: steps are applied from the lowest
+        final long score;
+        final RowTest test;
+
+        Step(int estimate, int cost, RowTest test) {
+            this.score = (long) estimate * cost;
+            this.test = test;
+        }
     }
 }
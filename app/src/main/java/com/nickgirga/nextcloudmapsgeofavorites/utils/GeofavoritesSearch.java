@@ -0,0 +1,188 @@
+package com.nickgirga.nextcloudmapsgeofavorites.utils;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+
+import androidx.annotation.MainThread;
+import androidx.annotation.Nullable;
+import androidx.lifecycle.LiveData;
+import androidx.lifecycle.MutableLiveData;
+
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteSnapshot;
+
+/**
+ * Filtering run in background: text changes are debounced while typing, and a newer search cancels
+ * the previous one, so only the result of the last search is delivered.
+ * Text is looked for as a substring of the names and comments with the trigram index, and the matches
+ * are delivered best first according to the full text search of the words of the text, those it does
+ * not rank, e.g. with the text in the middle of a word, coming last. When there is no substring match,
+ * the words of the text are looked for in any order (full text), then allowing typos.
+ * When the criteria narrow the previous ones on the same snapshot, a substring search only filters
+ * the previous substring matches.
+ */
+public class GeofavoritesSearch {
+    private static final long DEBOUNCE_MS = 200;
+    private static final int FUZZY_LIMIT = 50;
+
+    // Main thread only, captured by each search
+    private TrigramIndex mIndex;
+    private FuzzyIndex mFuzzyIndex;
+    private FullTextSearch mFullTextSearch;
+    private final ScheduledExecutorService mExecutor;
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+    private final MutableLiveData<List<Geofavorite>> mResults = new MutableLiveData<>();
+    private volatile boolean mPrepareSpatialIndex = false;
+
+    // Main thread only
+    private int mGeneration = 0;
+    @Nullable
+    private ScheduledFuture<?> mScheduled;
+    @Nullable
+    private CancellationSignal mRunning;
+    @Nullable
+    private FilterCriteria mLastRequested;
+
+    // Last completed search, executor thread only
+    @Nullable
+    private GeofavoriteSnapshot mLastSnapshot;
+    @Nullable
+    private FilterCriteria mLastCriteria;
+    @Nullable
+    private BitSet mLastRows;
+
+    public interface FullTextSearch {
+        /**
+         * @return the ids of the geofavorites matching the text, best first, or null if unavailable
+         */
+        @Nullable
+        int[] search(String text, int limit);
+    }
+
+    public GeofavoritesSearch(TrigramIndex index, FuzzyIndex fuzzyIndex, FullTextSearch fullTextSearch) {
+        setSources(index, fuzzyIndex, fullTextSearch);
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1);
+        executor.setKeepAliveTime(30, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        this.mExecutor = executor;
+    }
+
+    /**
+     * Replaces the indexes searched, e.g. with the ones of another account. Applies to the next searches.
+     */
+    @MainThread
+    public void setSources(TrigramIndex index, FuzzyIndex fuzzyIndex, FullTextSearch fullTextSearch) {
+        this.mIndex = index;
+        this.mFuzzyIndex = fuzzyIndex;
+        this.mFullTextSearch = fullTextSearch;
+    }
+
+    /**
+     * @param prepare if true, the spatial index of the searched snapshots is built before delivering
+     * the results, for a consumer that queries it on the main thread (e.g. a list sorted by distance)
+     */
+    public void setPrepareSpatialIndex(boolean prepare) {
+        this.mPrepareSpatialIndex = prepare;
+    }
+
+    /**
+     * @return the results of the last search, delivered on the main thread
+     */
+    public LiveData<List<Geofavorite>> getResults() {
+        return mResults;
+    }
+
+    /**
+     * Filters the snapshot, replacing any pending or running search
+     */
+    @MainThread
+    public void search(GeofavoriteSnapshot snapshot, FilterCriteria criteria) {
+        int generation = ++mGeneration;
+        if (mScheduled != null)
+            mScheduled.cancel(false);
+        if (mRunning != null)
+            mRunning.cancel();
+
+        CancellationSignal signal = new CancellationSignal();
+        mRunning = signal;
+        // Only typing is debounced, clearing the text or changing other criteria is immediate
+        boolean typing = criteria.hasText()
+                && (mLastRequested == null || !criteria.getQuery().equals(mLastRequested.getQuery()));
+        mLastRequested = criteria;
+        long delay = typing ? DEBOUNCE_MS : 0;
+        TrigramIndex index = mIndex;
+        FuzzyIndex fuzzyIndex = mFuzzyIndex;
+        FullTextSearch fullTextSearch = mFullTextSearch;
+        mScheduled = mExecutor.schedule(() -> run(generation, snapshot, criteria, index, fuzzyIndex, fullTextSearch, signal),
+                delay, TimeUnit.MILLISECONDS);
+    }
+
+    @MainThread
+    public void shutdown() {
+        mGeneration++;
+        if (mRunning != null)
+            mRunning.cancel();
+        mExecutor.shutdownNow();
+    }
+
+    /**
+     * Runs on mExecutor
+     */
+    private void run(int generation, GeofavoriteSnapshot snapshot, FilterCriteria criteria, TrigramIndex index,
+                     FuzzyIndex fuzzyIndex, FullTextSearch fullTextSearch, CancellationSignal signal) {
+        List<Geofavorite> results;
+        BitSet rows = null;
+        try {
+            if (criteria.isEmpty()) {
+                // Built here rather than by the first reader, possibly the main thread
+                snapshot.getTable();
+                results = snapshot;
+            } else {
+                GeofavoritesFilter filter = new GeofavoritesFilter(snapshot, index, fuzzyIndex);
+                // Whatever matches narrowed criteria also matches the previous ones
+                BitSet within = snapshot == mLastSnapshot && criteria.narrows(mLastCriteria) ? mLastRows : null;
+                rows = filter.match(criteria, within, signal);
+                int[] ids = null;
+                if (criteria.hasText()) {
+                    // Only orders the substring matches, whatever their number
+                    ids = fullTextSearch.search(criteria.getQuery(), Integer.MAX_VALUE);
+                    signal.throwIfCanceled();
+                }
+                if (ids == null)
+                    results = filter.select(rows);
+                else if (!rows.isEmpty())
+                    results = filter.ranked(rows, ids);
+                else
+                    // The words of the text, e.g. in another order
+                    results = filter.ranked(ids, criteria, signal);
+                if (results.isEmpty() && criteria.hasText()) {
+                    List<Geofavorite> fuzzyResults = filter.fuzzy(criteria, FUZZY_LIMIT, signal);
+                    if (fuzzyResults != null)
+                        results = fuzzyResults;
+                }
+            }
+        } catch (OperationCanceledException e) {
+            return;
+        }
+        if (mPrepareSpatialIndex)
+            snapshot.getSpatialIndex();
+
+        mLastSnapshot = snapshot;
+        mLastCriteria = criteria;
+        mLastRows = rows;
+        mMainHandler.post(() -> {
+            if (generation == mGeneration)
+                mResults.setValue(results);
+        });
+    }
+}
@@ -0,0 +1,164 @@
+package com.nickgirga.nextcloudmapsgeofavorites.utils;
+
+import java.util.Arrays;
+
+/**
+ * Hash map from int keys to int values, without boxing.
+ * Open addressing with linear probing; removals shift the following entries back, so no tombstones
+ * are left behind and lookups stay constant-time after many removals.
+ * Integer.MIN_VALUE is reserved to mark free slots and cannot be used as key.
+ * Not thread safe.
+ */
+public class IntIntMap {
+    private static final int FREE_KEY = Integer.MIN_VALUE;
+    private static final float LOAD_FACTOR = 0.5f;
+
+    private int[] keys;
+    private int[] values;
+    private int mask;
+    private int size;
+    private final int missingValue;
+
+    /**
+     * @param expectedSize number of entries that can be stored without resizing
+     * @param missingValue value returned by get() for keys not in the map
+     */
+    public IntIntMap(int expectedSize, int missingValue) {
+        this.missingValue = missingValue;
+        allocate(capacityFor(expectedSize));
+    }
+
+    /**
+     * Copy constructor
+     */
+    public IntIntMap(IntIntMap other) {
+        this.keys = other.keys.clone();
+        this.values = other.values.clone();
+        this.mask = other.mask;
+        this.size = other.size;
+        this.missingValue = other.missingValue;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int get(int key) {
+        int slot = findSlot(key);
+        return keys[slot] == FREE_KEY ? missingValue : values[slot];
+    }
+
+    public boolean containsKey(int key) {
+        return keys[findSlot(key)] != FREE_KEY;
+    }
+
+    /**
+     * @return the previous value for the key, or missingValue
+     */
+    public int put(int key, int value) {
+        if (key == FREE_KEY)
+            throw new IllegalArgumentException("Reserved key: " + key);
+
+        int slot = findSlot(key);
+        if (keys[slot] != FREE_KEY) {
+            int previous = values[slot];
+            values[slot] = value;
+            return previous;
+        }
+
+        keys[slot] = key;
+        values[slot] = value;
+        if (++size > keys.length * LOAD_FACTOR)
+            rehash(keys.length * 2);
+        return missingValue;
+    }
+
+    /**
+     * @return the removed value, or missingValue if the key was not in the map
+     */
+    public int remove(int key) {
+        int slot = findSlot(key);
+        if (keys[slot] == FREE_KEY)
+            return missingValue;
+
+        int removed = values[slot];
+        size--;
+
+        // Shift back the entries of the same probe sequence, to keep it free of holes
+        int free = slot;
+        int next = (free + 1) & mask;
+        while (keys[next] != FREE_KEY) {
+            int home = mix(keys[next]) & mask;
+            // Move the entry only if its home slot is not between the free slot and its position
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                keys[free] = keys[next];
+                values[free] = values[next];
+                free = next;
+            }
+            next = (next + 1) & mask;
+        }
+        keys[free] = FREE_KEY;
+        return removed;
+    }
+
+    public void clear() {
+        Arrays.fill(keys, FREE_KEY);
+        size = 0;
+    }
+
+    /**
+     * Calls the consumer for each entry, in no particular order. The map must not be modified meanwhile.
+     */
+    public void forEach(EntryConsumer consumer) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE_KEY)
+                consumer.accept(keys[i], values[i]);
+        }
+    }
+
+    private int findSlot(int key) {
+        int slot = mix(key) & mask;
+        while (keys[slot] != FREE_KEY && keys[slot] != key)
+            slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void rehash(int capacity) {
+        int[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE_KEY) {
+                int slot = findSlot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new int[capacity];
+        values = new int[capacity];
+        Arrays.fill(keys, FREE_KEY);
+        mask = capacity - 1;
+    }
+
+    private static int capacityFor(int expectedSize) {
+        int capacity = 8;
+        while (capacity * LOAD_FACTOR < expectedSize)
+            capacity <<= 1;
+        return capacity;
+    }
+
+    /**
+     * Spreads sequential ids (the common case) over the whole table
+     */
+    private static int mix(int key) {
+        int h = key * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+    public interface EntryConsumer {
+        void accept(int key, int value);
+    }
+}
@@ -0,0 +1,81 @@
+package com.nickgirga.nextcloudmapsgeofavorites.utils;
+
+import androidx.annotation.Nullable;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Normalization of the searched text, so that "citta" matches "Città":
+ * case folded, decomposed (NFKD) with the diacritics stripped, and with whitespace collapsed to single spaces.
+ */
+public class SearchKey {
+    /**
+     * Separates the fields of a key. Never produced by normalize(), so no query can match across fields.
+     */
+    public static final char FIELD_SEPARATOR = '\u0000';
+
+    // Longer words are truncated
+    private static final int MAX_WORD_LENGTH = 32;
+
+    public static String normalize(@Nullable String text) {
+        if (text == null || text.isEmpty())
+            return "";
+
+        // Lowercase first, as it can produce decomposable chars (e.g. "İ")
+        String decomposed = Normalizer.normalize(text.toLowerCase(Locale.ROOT), Normalizer.Form.NFKD);
+        StringBuilder key = new StringBuilder(decomposed.length());
+        boolean pendingSpace = false;
+        for (int i = 0; i < decomposed.length(); i++) {
+            char c = decomposed.charAt(i);
+            int type = Character.getType(c);
+            if (type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK
+                    || type == Character.COMBINING_SPACING_MARK) {
+                continue;
+            }
+            if (Character.isWhitespace(c) || Character.isSpaceChar(c) || Character.isISOControl(c)) {
+                pendingSpace = key.length() > 0;
+                continue;
+            }
+            if (pendingSpace) {
+                key.append(' ');
+                pendingSpace = false;
+            }
+            key.append(c);
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the normalized fields, joined by FIELD_SEPARATOR
+     */
+    public static String of(@Nullable String... fields) {
+        StringBuilder key = new StringBuilder();
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0)
+                key.append(FIELD_SEPARATOR);
+            key.append(normalize(fields[i]));
+        }
+        return key.toString();
+    }
+
+    /**
+     * Splits normalized text into words of letters and digits
+     */
+    public static List<String> words(String text) {
+        List<String> words = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean wordChar = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (wordChar && start < 0) {
+                start = i;
+            } else if (!wordChar && start >= 0) {
+                words.add(text.substring(start, Math.min(i, start + MAX_WORD_LENGTH)));
+                start = -1;
+            }
+        }
+        return words;
+    }
+}
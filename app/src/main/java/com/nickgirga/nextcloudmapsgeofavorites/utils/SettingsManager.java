@@ -14,6 +14,14 @@ public class SettingsManager {
     static private final String SETTING_LAST_MAP_POSITION_ZOOM = "SETTING_LAST_MAP_POSITION_ZOOM";
     static private final String SETTING_MAP_URL_SCHEME = "SETTING_MAP_URL_SCHEME";
     static private final String SETTING_THEME_COLOR = "SETTING_THEME_COLOR";
+    static private final String SETTING_MAP_VIEWPORT_MARGIN = "SETTING_MAP_VIEWPORT_MARGIN";
+
+    /**
+     * Half the viewport on each side: the markers are kept while the map is moved by up to half a
+     * screen in any direction, and cover an area 4 times the viewport. The same fraction is applied
+     * to the height and to the width, so it does not depend on the screen orientation.
+     */
+    public static final float DEFAULT_MAP_VIEWPORT_MARGIN = 0.5f;
 
     public static int getGeofavoriteListSortBy(Context context) {
         return PreferenceManager.getDefaultSharedPreferences(context)
@@ -57,6 +65,22 @@ public class SettingsManager {
                 .apply();
     }
 
+    /**
+     * Returns the margin around the map viewport in which markers are shown, as a fraction of the
+     * viewport height (latitudes) and width (longitudes) on each side. Larger margins update the
+     * markers less often while the map moves, but show more of them.
+     * @return DEFAULT_MAP_VIEWPORT_MARGIN unless set
+     */
+    public static double getMapViewportMargin(Context context) {
+        return Math.max(0, PreferenceManager.getDefaultSharedPreferences(context)
+                .getFloat(SETTING_MAP_VIEWPORT_MARGIN, DEFAULT_MAP_VIEWPORT_MARGIN));
+    }
+
+    public static void setMapViewportMargin(Context context, double margin) {
+        PreferenceManager.getDefaultSharedPreferences(context)
+            .edit().putFloat(SETTING_MAP_VIEWPORT_MARGIN, (float) margin).apply();
+    }
+
     public static int getMapUrlScheme(Context context) {
         return PreferenceManager.getDefaultSharedPreferences(context)
                 .getInt(SETTING_MAP_URL_SCHEME, GeoUriParser.URL_SCHEME_GOOGLE_MAPS);
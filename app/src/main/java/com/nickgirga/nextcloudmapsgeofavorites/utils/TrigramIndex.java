@@ -0,0 +1,169 @@
+package com.nickgirga.nextcloudmapsgeofavorites.utils;
+
+import androidx.annotation.Nullable;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteSnapshot;
+
+/**
+ * Inverted index of the trigrams of the geofavorites search keys (see Geofavorite.getSearchKey()),
+ * answering substring queries by intersecting the id sets of the query trigrams, then checking the few candidates left.
+ * It is kept up to date from the changes between consecutive snapshots (see apply()), and can be
+ * searched from any thread; a search only uses the index if it reflects the searched snapshot.
+ */
+public class TrigramIndex {
+    private static final int PRESENT = 1;
+
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    // trigram -> set of ids (values are unused)
+    private HashMap<Long, IntIntMap> mPostings = new HashMap<>();
+    // Version of the snapshot the index reflects
+    private long mVersion = -1;
+
+    /**
+     * Applies the differences between the two snapshots, or rebuilds the index if they are not
+     * consecutive or the index does not reflect the previous one. Must not be called concurrently.
+     */
+    public void apply(GeofavoriteSnapshot previous, GeofavoriteSnapshot current) {
+        if (!current.follows(previous) || mVersion != previous.getVersion()) {
+            // Built outside of the lock, so that searches are not blocked meanwhile
+            // Read from the columns, not to materialize the geofavorites of a snapshot loaded from a file
+            HashMap<Long, IntIntMap> postings = new HashMap<>();
+            for (int row = 0; row < current.size(); row++)
+                add(postings, current.getId(row), SearchKey.of(current.getName(row), current.getComment(row)));
+            mLock.writeLock().lock();
+            try {
+                mPostings = postings;
+                mVersion = current.getVersion();
+            } finally {
+                mLock.writeLock().unlock();
+            }
+            return;
+        }
+
+        GeofavoriteSnapshot.Change change = current.getChange();
+        mLock.writeLock().lock();
+        try {
+            for (int id : change.removed)
+                remove(mPostings, previous.findById(id));
+            for (int id : change.updated) {
+                remove(mPostings, previous.findById(id));
+                add(mPostings, current.findById(id));
+            }
+            for (int id : change.added)
+                add(mPostings, current.findById(id));
+            mVersion = current.getVersion();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @param query normalized text (see SearchKey.normalize())
+     * @return the ids of the geofavorites of the snapshot whose search key contains all the trigrams
+     * of the query, a superset of the ones containing the query itself, that still have to be checked.
+     * Null if the index cannot answer (the query is shorter than a trigram, or the index does not
+     * reflect the snapshot): the caller has to scan the snapshot instead.
+     */
+    @Nullable
+    public int[] candidates(GeofavoriteSnapshot snapshot, String query) {
+        long[] trigrams = trigrams(query);
+        if (trigrams.length == 0)
+            return null;
+
+        mLock.readLock().lock();
+        try {
+            if (mVersion != snapshot.getVersion())
+                return null;
+            return intersect(trigrams);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Must be called with the read lock held
+     */
+    private int[] intersect(long[] trigrams) {
+        IntIntMap[] sets = new IntIntMap[trigrams.length];
+        for (int i = 0; i < trigrams.length; i++) {
+            sets[i] = mPostings.get(trigrams[i]);
+            if (sets[i] == null)
+                return new int[0];
+        }
+        // Iterate over the smallest set only
+        Arrays.sort(sets, (s0, s1) -> Integer.compare(s0.size(), s1.size()));
+
+        int[] ids = new int[sets[0].size()];
+        int[] count = {0};
+        sets[0].forEach((id, value) -> {
+            for (int i = 1; i < sets.length; i++) {
+                if (!sets[i].containsKey(id))
+                    return;
+            }
+            ids[count[0]++] = id;
+        });
+        return Arrays.copyOf(ids, count[0]);
+    }
+
+    private static void add(HashMap<Long, IntIntMap> postings, @Nullable Geofavorite g) {
+        if (g != null)
+            add(postings, g.getId(), g.getSearchKey());
+    }
+
+    /**
+     * @param searchKey see Geofavorite.getSearchKey()
+     */
+    private static void add(HashMap<Long, IntIntMap> postings, int id, String searchKey) {
+        // Trigrams spanning the field separator are never queried, as queries cannot contain it
+        for (long trigram : trigrams(searchKey)) {
+            IntIntMap ids = postings.get(trigram);
+            if (ids == null) {
+                ids = new IntIntMap(4, 0);
+                postings.put(trigram, ids);
+            }
+            ids.put(id, PRESENT);
+        }
+    }
+
+    private static void remove(HashMap<Long, IntIntMap> postings, @Nullable Geofavorite g) {
+        if (g == null)
+            return;
+        for (long trigram : trigrams(g.getSearchKey())) {
+            IntIntMap ids = postings.get(trigram);
+            if (ids != null) {
+                ids.remove(g.getId());
+                if (ids.size() == 0)
+                    postings.remove(trigram);
+            }
+        }
+    }
+
+    /**
+     * @return the distinct trigrams of the text, each one packing its three chars in a long
+     */
+    private static long[] trigrams(String text) {
+        if (text.length() < 3)
+            return new long[0];
+        long[] trigrams = new long[text.length() - 2];
+        for (int i = 0; i < trigrams.length; i++)
+            trigrams[i] = ((long) text.charAt(i) << 32) | ((long) text.charAt(i + 1) << 16) | text.charAt(i + 2);
+        return distinct(trigrams);
+    }
+
+    private static long[] distinct(long[] values) {
+        if (values.length == 0)
+            return values;
+        Arrays.sort(values);
+        int n = 1;
+        for (int i = 1; i < values.length; i++) {
+            if (values[i] != values[n - 1])
+                values[n++] = values[i];
+        }
+        return Arrays.copyOf(values, n);
+    }
+}
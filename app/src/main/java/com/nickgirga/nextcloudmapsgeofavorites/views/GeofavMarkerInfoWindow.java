@@ -1,18 +1,15 @@
 package com.nickgirga.nextcloudmapsgeofavorites.views;
 
 import android.content.Context;
-import android.graphics.drawable.Drawable;
 import android.view.View;
 
-import androidx.appcompat.content.res.AppCompatResources;
-import androidx.core.graphics.drawable.DrawableCompat;
-
 import org.osmdroid.views.MapView;
 import org.osmdroid.views.overlay.infowindow.InfoWindow;
 import org.osmdroid.views.overlay.infowindow.MarkerInfoWindow;
 
 import com.nickgirga.nextcloudmapsgeofavorites.R;
 import com.nickgirga.nextcloudmapsgeofavorites.model.Geofavorite;
+import com.nickgirga.nextcloudmapsgeofavorites.utils.CategoryIcons;
 
 public class GeofavMarkerInfoWindow extends MarkerInfoWindow implements View.OnClickListener {
     private OnGeofavMarkerInfoWindowClickListener onGeofavMarkerInfoWindowClickListener;
@@ -23,8 +20,8 @@ public class GeofavMarkerInfoWindow extends MarkerInfoWindow implements View.OnC
 
         // Set category color
         View category = getView().findViewById(R.id.bubble_subdescription);
-        Drawable backgroundDrawable = category.getBackground();
-        DrawableCompat.setTint(backgroundDrawable, geofavorite.categoryColor() == 0 ? context.getColor(R.color.defaultBrand) : geofavorite.categoryColor());
+        category.setBackground(CategoryIcons.background(context, R.drawable.rounded_label_background,
+                CategoryIcons.color(context, geofavorite.getCategory())));
 
         // Set listeners
         getView().findViewById(R.id.action_icon_share).setOnClickListener(this);
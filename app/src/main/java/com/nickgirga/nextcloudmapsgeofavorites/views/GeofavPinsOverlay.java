@@ -0,0 +1,181 @@
+package com.nickgirga.nextcloudmapsgeofavorites.views;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.graphics.drawable.Drawable;
+import android.util.SparseArray;
+import android.view.MotionEvent;
+
+import androidx.appcompat.content.res.AppCompatResources;
+
+import org.osmdroid.util.GeoPoint;
+import org.osmdroid.views.MapView;
+import org.osmdroid.views.Projection;
+import org.osmdroid.views.overlay.Overlay;
+
+import java.util.Arrays;
+
+import com.nickgirga.nextcloudmapsgeofavorites.R;
+import com.nickgirga.nextcloudmapsgeofavorites.model.GeofavoriteTable;
+import com.nickgirga.nextcloudmapsgeofavorites.utils.CategoryIcons;
+
+/**
+ * Draws the pins of many geofavorites in a single overlay, instead of a Marker per geofavorite.
+ * Pins are given as coordinate and color arrays, and drawn from a bitmap rasterized once per color
+ * (see CategoryIcons).
+ * The pins drawn are kept in a grid of screen cells as large as a pin, so that a tap is only tested
+ * against the pins of the cells around it.
+ * Pins are anchored at their bottom center, southern pins drawn over northern ones.
+ */
+public class GeofavPinsOverlay extends Overlay {
+    private static final int NONE = -1;
+
+    private final Context context;
+    private final int pinWidth, pinHeight;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private OnPinClickListener onPinClickListener;
+
+    private double[] lats = new double[0];
+    private double[] lngs = new double[0];
+    private Bitmap[] bitmaps = new Bitmap[0];
+    // Pins by decreasing latitude
+    private int[] drawOrder = new int[0];
+
+    // Pins drawn by the last draw(), in drawing order, with the screen position of their anchor
+    private int drawnCount = 0;
+    private int[] drawnPins = new int[0];
+    private int[] drawnX = new int[0];
+    private int[] drawnY = new int[0];
+    // Last drawn pin anchored in each cell, and previous drawn pin anchored in the same cell, NONE if none
+    private int gridColumns = 0, gridRows = 0;
+    private int[] cellLast = new int[0];
+    private int[] previousInCell = new int[0];
+
+    // Reused while drawing
+    private final GeoPoint point = new GeoPoint(0.0, 0.0);
+    private final Point pixel = new Point();
+
+    public GeofavPinsOverlay(Context context) {
+        this.context = context;
+        Drawable pin = AppCompatResources.getDrawable(context, R.drawable.ic_map_pin);
+        this.pinWidth = pin.getIntrinsicWidth();
+        this.pinHeight = pin.getIntrinsicHeight();
+    }
+
+    public void setOnPinClickListener(OnPinClickListener l) {
+        this.onPinClickListener = l;
+    }
+
+    /**
+     * Replaces the pins, designated by their index in the arrays. The map must be invalidated.
+     */
+    public void setPins(double[] lats, double[] lngs, int[] colors) {
+        int size = lats.length;
+        this.lats = lats;
+        this.lngs = lngs;
+        bitmaps = new Bitmap[size];
+        drawOrder = new int[size];
+        // Few distinct colors, each one is resolved once
+        SparseArray<Bitmap> colorBitmaps = new SparseArray<>();
+        for (int pin = 0; pin < size; pin++) {
+            Bitmap bitmap = colorBitmaps.get(colors[pin]);
+            if (bitmap == null) {
+                bitmap = CategoryIcons.pinBitmap(context, R.drawable.ic_map_pin, colors[pin]);
+                colorBitmaps.put(colors[pin], bitmap);
+            }
+            bitmaps[pin] = bitmap;
+            drawOrder[pin] = pin;
+        }
+        GeofavoriteTable.sortRows(drawOrder, size, (p0, p1) -> Double.compare(lats[p1], lats[p0]));
+
+        drawnPins = new int[size];
+        drawnX = new int[size];
+        drawnY = new int[size];
+        previousInCell = new int[size];
+        drawnCount = 0;
+        Arrays.fill(cellLast, NONE);
+    }
+
+    @Override
+    public void draw(Canvas canvas, Projection pj) {
+        Rect screen = pj.getIntrinsicScreenRect();
+        int width = screen.width(), height = screen.height();
+        int halfWidth = pinWidth / 2;
+
+        // Anchors of visible pins are from -halfWidth to width + halfWidth, and from 0 to height + pinHeight
+        int columns = (width + halfWidth) / pinWidth + 2, rows = height / pinHeight + 2;
+        if (columns * rows != cellLast.length)
+            cellLast = new int[columns * rows];
+        gridColumns = columns;
+        gridRows = rows;
+        Arrays.fill(cellLast, NONE);
+
+        drawnCount = 0;
+        for (int pin : drawOrder) {
+            point.setCoords(lats[pin], lngs[pin]);
+            pj.toPixels(point, pixel);
+            int x = pixel.x, y = pixel.y;
+            if (x < -halfWidth || x > width + halfWidth || y < 0 || y > height + pinHeight)
+                continue;
+            canvas.drawBitmap(bitmaps[pin], x - halfWidth, y - pinHeight, paint);
+
+            int drawn = drawnCount++;
+            drawnPins[drawn] = pin;
+            drawnX[drawn] = x;
+            drawnY[drawn] = y;
+            int cell = cellY(y) * gridColumns + cellX(x);
+            previousInCell[drawn] = cellLast[cell];
+            cellLast[cell] = drawn;
+        }
+    }
+
+    /**
+     * @return the topmost pin drawn at the screen position, or NONE
+     */
+    private int hitTest(int x, int y) {
+        int halfWidth = pinWidth / 2;
+        // A pin covers the position if its anchor is at most halfWidth away horizontally, and at most
+        // pinHeight below: in the adjacent columns, and in the row of the position or the one below
+        int topmost = NONE;
+        for (int cx = Math.max(0, cellX(x) - 1); cx <= Math.min(gridColumns - 1, cellX(x) + 1); cx++) {
+            for (int cy = Math.max(0, cellY(y)); cy <= Math.min(gridRows - 1, cellY(y) + 1); cy++) {
+                for (int drawn = cellLast[cy * gridColumns + cx]; drawn > topmost; drawn = previousInCell[drawn]) {
+                    if (Math.abs(drawnX[drawn] - x) <= halfWidth && y <= drawnY[drawn] && y >= drawnY[drawn] - pinHeight) {
+                        topmost = drawn;
+                        break;
+                    }
+                }
+            }
+        }
+        return topmost == NONE ? NONE : drawnPins[topmost];
+    }
+
+    // Positions are on the screen, or less than a pin left of it
+    private int cellX(int x) {
+        return (x + pinWidth) / pinWidth;
+    }
+
+    private int cellY(int y) {
+        return y / pinHeight;
+    }
+
+    @Override
+    public boolean onSingleTapConfirmed(MotionEvent e, MapView mapView) {
+        if (onPinClickListener == null || drawnCount == 0)
+            return false;
+        int pin = hitTest((int) e.getX(), (int) e.getY());
+        return pin != NONE && onPinClickListener.onPinClick(pin);
+    }
+
+    public interface OnPinClickListener {
+        /**
+         * @param pin index of the pin in the arrays given to setPins()
+         * @return true if the tap is handled
+         */
+        boolean onPinClick(int pin);
+    }
+}
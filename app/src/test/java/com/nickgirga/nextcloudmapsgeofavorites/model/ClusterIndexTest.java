@@ -0,0 +1,94 @@
+package com.nickgirga.nextcloudmapsgeofavorites.model;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ClusterIndexTest {
+    // Same as ClusterIndex
+    private static final double CLUSTER_RADIUS = 60;
+    private static final double TILE_SIZE = 256;
+
+    /**
+     * Two points 1.5 cells of the finer grid apart are within the cluster radius at MAX_ZOOM,
+     * wherever the grid cells fall
+     */
+    @Test
+    public void mergesPointsWithinRadiusAcrossCells() {
+        double cell = radius(ClusterIndex.MAX_ZOOM + 1);
+        double origin = Math.floor(0.5 / cell) * cell;
+        for (double offset = 0.05; offset < 1; offset += 0.1) {
+            double x0 = origin + offset * cell;
+            double x1 = x0 + 1.5 * cell;
+            ClusterIndex index = ClusterIndex.of(GeofavoriteSelection.all(snapshot(x0, x1)), null);
+
+            int[] entries = index.query(ClusterIndex.MAX_ZOOM, -80, -179, 80, 179);
+            assertEquals("offset " + offset, 1, entries.length);
+            assertEquals("offset " + offset, 2, index.getCount(ClusterIndex.MAX_ZOOM, entries[0]));
+            assertEquals(2, index.query(ClusterIndex.MAX_ZOOM + 1, -80, -179, 80, 179).length);
+        }
+    }
+
+    private static double radius(int zoom) {
+        return CLUSTER_RADIUS / (TILE_SIZE * Math.pow(2, zoom));
+    }
+
+    /**
+     * @return a snapshot of points on the equator at the given Web Mercator x, read as columns only
+     */
+    private static GeofavoriteSnapshot snapshot(double... xs) {
+        GeofavoriteSnapshot.Builder builder = new GeofavoriteSnapshot.Builder();
+        builder.setAll(new GeofavoriteSnapshot.RowSource() {
+            @Override
+            public int size() {
+                return xs.length;
+            }
+
+            @Override
+            public int getId(int row) {
+                return row + 1;
+            }
+
+            @Override
+            public long getDateModified(int row) {
+                return 0;
+            }
+
+            @Override
+            public long getDateCreated(int row) {
+                return 0;
+            }
+
+            @Override
+            public double getLat(int row) {
+                return 0;
+            }
+
+            @Override
+            public double getLng(int row) {
+                return (xs[row] - 0.5) * 360;
+            }
+
+            @Override
+            public String getName(int row) {
+                return null;
+            }
+
+            @Override
+            public String getCategory(int row) {
+                return null;
+            }
+
+            @Override
+            public String getComment(int row) {
+                return null;
+            }
+
+            @Override
+            public Geofavorite materialize(int row) {
+                throw new AssertionError("Only the columns are read");
+            }
+        });
+        return builder.build();
+    }
+}